@@ -0,0 +1,91 @@
+package snn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses deltas that Streamer sends to masters of blocks. Codecs are lossy: encode replaces
+ * deltas by values as the master will decode them, and the streamer keeps the difference as a
+ * residual in _last, sent with later deltas.
+ */
+public abstract class Codec {
+  /**
+   * Bytes for n values.
+   */
+  abstract int bytes(int n);
+
+  /**
+   * Writes d[0, n) to b from offset, and replaces d by decoded values.
+   */
+  abstract void encode(float[] d, int n, ByteBuffer b, int offset);
+
+  abstract void decode(ByteBuffer b, int offset, float[] d, int n);
+
+  /**
+   * 8 bits per value, scaled by the largest magnitude of the block.
+   */
+  public static final class Int8 extends Codec {
+    @Override
+    int bytes(int n) {
+      return 4 + n;
+    }
+
+    @Override
+    void encode(float[] d, int n, ByteBuffer b, int offset) {
+      float max = 0;
+      for( int i = 0; i < n; i++ )
+        max = Math.max(max, Math.abs(d[i]));
+      float scale = max / 127, inv = max == 0 ? 0 : 127 / max;
+      b.putFloat(offset, scale);
+      for( int i = 0; i < n; i++ ) {
+        byte q = (byte) Math.round(d[i] * inv);
+        b.put(offset + 4 + i, q);
+        d[i] = q * scale;
+      }
+    }
+
+    @Override
+    void decode(ByteBuffer b, int offset, float[] d, int n) {
+      float scale = b.getFloat(offset);
+      for( int i = 0; i < n; i++ )
+        d[i] = b.get(offset + 4 + i) * scale;
+    }
+  }
+
+  /**
+   * 1 bit per value, its sign, scaled by the mean magnitude of the block, as in 1-bit SGD. Only
+   * converges thanks to residuals.
+   */
+  public static final class Sign extends Codec {
+    @Override
+    int bytes(int n) {
+      return 4 + (n + 7) / 8;
+    }
+
+    @Override
+    void encode(float[] d, int n, ByteBuffer b, int offset) {
+      float sum = 0;
+      for( int i = 0; i < n; i++ )
+        sum += Math.abs(d[i]);
+      float scale = sum / n;
+      b.putFloat(offset, scale);
+      for( int i = 0; i < n; i += 8 ) {
+        int bits = 0;
+        for( int k = i; k < Math.min(i + 8, n); k++ ) {
+          if( d[k] < 0 ) {
+            bits |= 1 << (k - i);
+            d[k] = -scale;
+          } else
+            d[k] = scale;
+        }
+        b.put(offset + 4 + i / 8, (byte) bits);
+      }
+    }
+
+    @Override
+    void decode(ByteBuffer b, int offset, float[] d, int n) {
+      float scale = b.getFloat(offset);
+      for( int i = 0; i < n; i++ )
+        d[i] = (b.get(offset + 4 + i / 8) & (1 << (i % 8))) != 0 ? -scale : scale;
+    }
+  }
+}
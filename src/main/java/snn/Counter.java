@@ -0,0 +1,35 @@
+package snn;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Progress counter striped over padded slots, one per thread, so that counting does not bounce a
+ * shared cache line between cores. Each slot has a single writer. Reading sums all slots, and is
+ * approximate while threads count.
+ */
+final class Counter {
+  // Longs per slot, two cache lines to also defeat adjacent line prefetch
+  static final int PAD = 16;
+
+  private final AtomicLongArray _slots;
+
+  Counter(int threads) {
+    // First slot is left empty, away from the array header
+    _slots = new AtomicLongArray((threads + 1) * PAD);
+  }
+
+  /**
+   * Only called by the owner of the slot, so no atomic read-modify-write is needed.
+   */
+  void add(int thread, long n) {
+    int i = (thread + 1) * PAD;
+    _slots.lazySet(i, _slots.get(i) + n);
+  }
+
+  long get() {
+    long sum = 0;
+    for( int i = PAD; i < _slots.length(); i += PAD )
+      sum += _slots.get(i);
+    return sum;
+  }
+}
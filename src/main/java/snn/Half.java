@@ -0,0 +1,52 @@
+package snn;
+
+/**
+ * bfloat16 conversions, for 16-bit weight storage. Values keep the float exponent and the top 7
+ * bits of mantissa, so conversions are shifts and arithmetic stays in float.
+ */
+public final class Half {
+  private Half() {
+  }
+
+  public static float toFloat(short h) {
+    return Float.intBitsToFloat(h << 16);
+  }
+
+  /**
+   * Rounds to nearest, ties to even.
+   */
+  public static short round(float f) {
+    int bits = Float.floatToRawIntBits(f);
+    if( (bits & 0x7fffffff) > 0x7f800000 )
+      return (short) ((bits >>> 16) | 0x40); // Keeps NaNs quiet
+    return (short) ((bits + 0x7fff + ((bits >>> 16) & 1)) >>> 16);
+  }
+
+  /**
+   * Stochastic rounding, away from zero with probability equal to the truncated fraction. Small
+   * updates are kept on average instead of being lost. Uses the low 16 bits of random.
+   */
+  public static short round(float f, int random) {
+    int bits = Float.floatToRawIntBits(f);
+    if( (bits & 0x7fffffff) >= 0x7f7f0000 )
+      return round(f);
+    return (short) ((bits + (random & 0xffff)) >>> 16);
+  }
+
+  /**
+   * Xorshift step, cheap random bits for rounding.
+   */
+  public static int next(int x) {
+    x ^= x << 13;
+    x ^= x >>> 17;
+    x ^= x << 5;
+    return x;
+  }
+
+  public static short[] round(float[] w) {
+    short[] h = new short[w.length];
+    for( int i = 0; i < w.length; i++ )
+      h[i] = round(w[i]);
+    return h;
+  }
+}
@@ -0,0 +1,171 @@
+package snn;
+
+/**
+ * Dense CPU kernels shared by all layers, c.f. Kernels.c for the OpenCL versions. Loops use
+ * hoisted offsets. Sums are unrolled on independent accumulators, so that additions do not wait on
+ * the previous one, which is instruction-level parallelism: HotSpot does not vectorize float
+ * reductions. Splitting sums reassociates them, so dot products and norms can differ in the last
+ * bits from a sequential loop. Element-wise results, e.g. of axpy, are the same.
+ */
+public final class Kernels {
+  private Kernels() {
+  }
+
+  /**
+   * Returns sum of x[xo + i] * y[yo + i] for i in [0, n).
+   */
+  public static float dot(float[] x, int xo, float[] y, int yo, int n) {
+    float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+    int i = 0;
+    for( ; i <= n - 4; i += 4 ) {
+      s0 += x[xo + i + 0] * y[yo + i + 0];
+      s1 += x[xo + i + 1] * y[yo + i + 1];
+      s2 += x[xo + i + 2] * y[yo + i + 2];
+      s3 += x[xo + i + 3] * y[yo + i + 3];
+    }
+    for( ; i < n; i++ )
+      s0 += x[xo + i] * y[yo + i];
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /**
+   * Sparse version of dot, over the n indexes in idx.
+   */
+  public static float dot(float[] x, int xo, float[] y, int[] idx, int n) {
+    float s0 = 0, s1 = 0;
+    int k = 0;
+    for( ; k <= n - 2; k += 2 ) {
+      int i = idx[k], j = idx[k + 1];
+      s0 += x[xo + i] * y[i];
+      s1 += x[xo + j] * y[j];
+    }
+    for( ; k < n; k++ ) {
+      int i = idx[k];
+      s0 += x[xo + i] * y[i];
+    }
+    return s0 + s1;
+  }
+
+  /**
+   * y += a * x
+   */
+  public static void axpy(float a, float[] x, int xo, float[] y, int yo, int n) {
+    for( int i = 0; i < n; i++ )
+      y[yo + i] += a * x[xo + i];
+  }
+
+  /**
+   * Sparse version of axpy, over the n indexes in idx.
+   */
+  public static void axpy(float a, float[] x, int xo, float[] y, int[] idx, int n) {
+    for( int k = 0; k < n; k++ ) {
+      int i = idx[k];
+      y[i] += a * x[xo + i];
+    }
+  }
+
+  /**
+   * x *= s
+   */
+  public static void scale(float[] x, int xo, int n, float s) {
+    for( int i = 0; i < n; i++ )
+      x[xo + i] *= s;
+  }
+
+  /**
+   * Fused scale-add for SGD, w += r * (g * x - l2 * w - l1 * sign(w)). Returns the squared norm
+   * of the updated weights.
+   */
+  public static float update(float[] w, int wo, float[] x, int xo, int n, float g, float r, float l1, float l2) {
+    float rg = r * g, rl1 = r * l1, k = 1 - r * l2;
+    float r0 = 0, r1 = 0;
+    int i = 0;
+    if( l1 == 0 ) {
+      for( ; i <= n - 2; i += 2 ) {
+        float w0 = w[wo + i + 0] * k + rg * x[xo + i + 0];
+        float w1 = w[wo + i + 1] * k + rg * x[xo + i + 1];
+        w[wo + i + 0] = w0;
+        w[wo + i + 1] = w1;
+        r0 += w0 * w0;
+        r1 += w1 * w1;
+      }
+    }
+    for( ; i < n; i++ ) {
+      float v = w[wo + i];
+      v = v * k + rg * x[xo + i] - rl1 * Math.signum(v);
+      w[wo + i] = v;
+      r0 += v * v;
+    }
+    return r0 + r1;
+  }
+
+  // bfloat16 versions, c.f. Half. Weights are widened to float, which is a shift.
+
+  public static float dot(short[] x, int xo, float[] y, int yo, int n) {
+    float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+    int i = 0;
+    for( ; i <= n - 4; i += 4 ) {
+      s0 += Float.intBitsToFloat(x[xo + i + 0] << 16) * y[yo + i + 0];
+      s1 += Float.intBitsToFloat(x[xo + i + 1] << 16) * y[yo + i + 1];
+      s2 += Float.intBitsToFloat(x[xo + i + 2] << 16) * y[yo + i + 2];
+      s3 += Float.intBitsToFloat(x[xo + i + 3] << 16) * y[yo + i + 3];
+    }
+    for( ; i < n; i++ )
+      s0 += Float.intBitsToFloat(x[xo + i] << 16) * y[yo + i];
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  public static float dot(short[] x, int xo, float[] y, int[] idx, int n) {
+    float s = 0;
+    for( int k = 0; k < n; k++ ) {
+      int i = idx[k];
+      s += Float.intBitsToFloat(x[xo + i] << 16) * y[i];
+    }
+    return s;
+  }
+
+  public static void axpy(float a, short[] x, int xo, float[] y, int yo, int n) {
+    for( int i = 0; i < n; i++ )
+      y[yo + i] += a * Float.intBitsToFloat(x[xo + i] << 16);
+  }
+
+  public static void axpy(float a, short[] x, int xo, float[] y, int[] idx, int n) {
+    for( int k = 0; k < n; k++ ) {
+      int i = idx[k];
+      y[i] += a * Float.intBitsToFloat(x[xo + i] << 16);
+    }
+  }
+
+  /**
+   * x *= s, rounded stochastically using random bits derived from seed. Returns the last seed, for
+   * next calls to continue the sequence.
+   */
+  public static int scale(short[] x, int xo, int n, float s, int seed) {
+    for( int i = 0; i < n; i++ ) {
+      seed = Half.next(seed);
+      x[xo + i] = Half.round(Float.intBitsToFloat(x[xo + i] << 16) * s, seed);
+    }
+    return seed;
+  }
+
+  /**
+   * Same as update on floats, accumulates in float and rounds stochastically. Adds the squared norm
+   * of updated weights to norm[0], and returns the last seed, c.f. scale.
+   */
+  public static int update(short[] w, int wo, float[] x, int xo, int n, float g, float r, float l1, float l2,
+      int seed, float[] norm) {
+    float rg = r * g, rl1 = r * l1, k = 1 - r * l2;
+    float r2 = 0;
+    for( int i = 0; i < n; i++ ) {
+      float v = Float.intBitsToFloat(w[wo + i] << 16);
+      v = v * k + rg * x[xo + i] - rl1 * Math.signum(v);
+      seed = Half.next(seed);
+      short h = Half.round(v, seed);
+      w[wo + i] = h;
+      v = Float.intBitsToFloat(h << 16);
+      r2 += v * v;
+    }
+    norm[0] += r2;
+    return seed;
+  }
+}
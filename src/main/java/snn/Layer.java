@@ -1,6 +1,8 @@
 package snn;
 
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Neural network layer.
@@ -26,8 +28,62 @@ public abstract class Layer implements Cloneable {
   @ParamsSearch.Info(origin = 1)
   public float momentumStable;
 
+  /**
+   * Applies L1/L2 decay to a weight only when its input is non-zero, catching up for the updates
+   * it skipped. Per-sample path, not supported with momentum. Pending decay is applied by flush(), and to
+   * snapshots and checkpoints.
+   */
+  @ParamsSearch.Ignore
+  public boolean lazyDecay;
+
+  /**
+   * Weight layout, c.f. weight(o, i). 0 is row-major. Otherwise weights are stored as tile x tile
+   * blocks, so that forward and backward passes both stream through memory.
+   */
+  @ParamsSearch.Ignore
+  public int tile;
+
+  /**
+   * Momentum velocity can be shared by all clones of a layer, or allocated per clone, i.e. per
+   * thread. Shared costs one float per weight in total and sees updates of all threads, per thread
+   * costs one per weight and thread.
+   */
+  public enum Velocity {
+    Shared, PerThread
+  }
+
+  @ParamsSearch.Ignore
+  public Velocity velocity = Velocity.Shared;
+
+  /**
+   * SGD, or per-weight step sizes adapted from gradient statistics. Adaptive optimizers use the
+   * learning rate schedule as step size, and do not support momentum or lazy decay.
+   */
+  public enum Optimizer {
+    SGD, Adagrad, RMSProp, Adam
+  }
+
+  @ParamsSearch.Ignore
+  public Optimizer optimizer = Optimizer.SGD;
+
+  @ParamsSearch.Ignore
+  public float beta1 = .9f, beta2 = .999f, epsilon = 1e-8f;
+
+  /**
+   * Stores optimizer state as bfloat16, halving its memory.
+   */
+  @ParamsSearch.Ignore
+  public boolean halfState;
+
   public float[] _w;
   public int _wi, _wl; // Offset and length
+
+  // 16-bit storage, replaces _w when set, c.f. NeuralNet.initHalf. Rounding bits come from one
+  // xorshift sequence per clone, numbered by a counter shared by clones.
+  public short[] _h;
+  transient int _seed;
+  transient float[] _norm;
+  transient AtomicInteger _clones;
   public int _bi, _bl;
 
   // Weights, biases, activity, error
@@ -35,8 +91,38 @@ public abstract class Layer implements Cloneable {
   // TODO extract transients & code in separate one-shot trees to avoid cloning
   protected float[] _a, _e;
 
-  // Momentum for weights and biases
-  protected float[] _wm, _bm;
+  // Momentum for weights then biases, indexed from _wi
+  protected float[] _wm;
+
+  // Optimizer state, first and second moments, parallel to _w. One of each pair is set.
+  float[] _s1, _s2;
+  short[] _s1h, _s2h;
+
+  // Adam bias corrections for the next update, and number of updates before it
+  transient float _c1, _c2;
+  transient long _t;
+
+  // Indexes of non-zero inputs for current sample, and for tiled layouts their offsets from the
+  // first run of a unit, c.f. run(o)
+  transient int[] _nz, _nzw;
+  transient int _nzl;
+
+  // Lazy decay: sum of rates of updates per unit, its value when each weight was last decayed, and
+  // upper bound of row norms. Rates are summed as they change with annealing. Sparse updates also
+  // track row norms, c.f. touched().
+  transient double[] _sums, _stamps;
+  transient float[] _norms;
+
+  // Mini-batch tiles, one row per sample, c.f. Trainer.Base.step(int)
+  protected transient float[][] _as, _es, _gs;
+
+  // When set, bprop(u, g, r, m) records gradients for a mini-batch instead of applying them
+  transient float[] _g;
+  transient int[] _hits;
+  transient float[] _acc;
+
+  // Gradients and squared norms for per-sample tiled bprop
+  transient float[] _grad, _r2;
 
   // Previous and input layers
   protected Layer _previous;
@@ -51,39 +137,196 @@ public abstract class Layer implements Cloneable {
 
   transient Training _training;
 
+  // Learning rate and momentum, cached for current progress
+  transient float _r, _m;
+
   public void init(Layer[] ls, int index, long step) {
-    _a = new float[units];
+    buffers(ls, index);
     _e = new float[units];
+    int clone = _clones != null ? _clones.incrementAndGet() : 0;
+    _seed = Half.next(index * 0x9E3779B9 ^ clone * 0x85EBCA6B | 1);
+    _norm = new float[1];
+    if( tile != 0 ) {
+      _grad = new float[units];
+      _r2 = new float[units];
+      _hits = new int[units];
+    }
+    if( hasMomentum() && velocity == Velocity.PerThread )
+      _wm = new float[_wl + _bl];
+    if( optimizer != Optimizer.SGD && (hasMomentum() || lazyDecay) )
+      throw new IllegalArgumentException(optimizer + " does not support momentum or lazy decay");
+    if( hasMomentum() && lazyDecay )
+      throw new IllegalArgumentException("Lazy decay is not supported with momentum");
+  }
+
+  /**
+   * Allocates what forward passes need, e.g. for clones which only score, c.f. NeuralNet.eval.
+   */
+  void buffers(Layer[] ls, int index) {
+    _a = new float[units];
     _previous = ls[index - 1];
     _input = (Input) ls[0];
     _wi = _previous._bi + _previous._bl;
     _wl = units * _previous.units;
     _bi = _wi + _wl;
     _bl = units;
+    _nz = new int[_previous.units];
+    if( tile != 0 ) {
+      if( units % tile != 0 || _previous.units % tile != 0 )
+        throw new IllegalArgumentException("Layer " + index + " size is not a multiple of tile " + tile);
+      _nzw = new int[_previous.units];
+    }
+  }
+
+  final boolean hasMomentum() {
+    return momentumStart != 0 || momentumStable != 0;
+  }
+
+  /**
+   * Allocates state shared by all clones of the layer, c.f. NeuralNet.init.
+   */
+  void share() {
+    _clones = new AtomicInteger();
+    if( lazyDecay ) {
+      _sums = new double[units];
+      _stamps = new double[_wl];
+    }
+    _norms = new float[units];
+    Arrays.fill(_norms, Float.POSITIVE_INFINITY);
+    if( hasMomentum() && velocity == Velocity.Shared )
+      _wm = new float[_wl + _bl];
+  }
+
+  /**
+   * Switches storage to bfloat16. Updates are accumulated in float and rounded stochastically.
+   */
+  void half(short[] h) {
+    if( optimizer != Optimizer.SGD )
+      throw new IllegalArgumentException(optimizer + " needs float weights, state can be 16-bit");
+    if( lazyDecay )
+      throw new IllegalArgumentException("Lazy decay is not supported with 16-bit weights");
+    if( hasMomentum() )
+      throw new IllegalArgumentException("Momentum is not supported with 16-bit weights");
+    _h = h;
+    _w = null;
+  }
+
+  /**
+   * Allocates tiles for mini-batches of given size.
+   */
+  public void batch(int size) {
+    _as = new float[size][units];
+    _es = new float[size][units];
+    _gs = new float[size][units];
+    _hits = new int[units];
+    _acc = new float[_previous.units];
+  }
 
-//    if( momentumStart != 0 || momentumStable != 0 ) {
-//      _wm = new float[_w.length];
-//      _bm = new float[_b.length];
-//    }
+  /**
+   * Points activity and error to a row of the mini-batch tiles.
+   */
+  void row(int r) {
+    _a = _as[r];
+    _e = _es[r];
   }
 
   public void randomize(Random rand) {
   }
 
-  protected abstract void fprop(boolean training);
+  /**
+   * Index in _w of the weight from input i to unit o.
+   */
+  public final int weight(int o, int i) {
+    int fanIn = _previous.units;
+    if( tile == 0 )
+      return _wi + o * fanIn + i;
+    return _wi + (o / tile) * tile * fanIn + (i / tile) * tile * tile + (o % tile) * tile + i % tile;
+  }
+
+  // Weights of a unit are stored in runs of contiguous floats, one for row-major, one per tile
+  // otherwise. Returns the offset of the first run, runs are then tile * tile floats apart.
+  private int run(int o) {
+    int fanIn = _previous.units;
+    if( tile == 0 )
+      return _wi + o * fanIn;
+    return _wi + (o / tile) * tile * fanIn + (o % tile) * tile;
+  }
 
-  protected abstract void bprop();
+  final float get(int w) {
+    return _h != null ? Half.toFloat(_h[w]) : _w[w];
+  }
+
+  final void set(int w, float v) {
+    if( _h != null )
+      _h[w] = Half.round(v);
+    else
+      _w[w] = v;
+  }
+
+  // Dense kernels on n weights from w, for either storage
+
+  private float dot(int w, float[] x, int xo, int n) {
+    return _h != null ? Kernels.dot(_h, w, x, xo, n) : Kernels.dot(_w, w, x, xo, n);
+  }
+
+  private void axpy(int w, float a, float[] y, int yo, int n) {
+    if( _h != null )
+      Kernels.axpy(a, _h, w, y, yo, n);
+    else
+      Kernels.axpy(a, _w, w, y, yo, n);
+  }
+
+  private void scale(int w, int n, float s) {
+    if( _h != null )
+      _seed = Kernels.scale(_h, w, n, s, _seed);
+    else
+      Kernels.scale(_w, w, n, s);
+  }
+
+  private float rowDot(int o, float[] x) {
+    int fanIn = _previous.units, len = tile == 0 ? fanIn : tile;
+    float sum = 0;
+    for( int i = 0, w = run(o); i < fanIn; i += len, w += tile * tile )
+      sum += dot(w, x, i, len);
+    return sum;
+  }
+
+  private void rowAxpy(int o, float a, float[] y) {
+    int fanIn = _previous.units, len = tile == 0 ? fanIn : tile;
+    for( int i = 0, w = run(o); i < fanIn; i += len, w += tile * tile )
+      axpy(w, a, y, i, len);
+  }
+
+  private void rowScale(int o, float s) {
+    int fanIn = _previous.units, len = tile == 0 ? fanIn : tile;
+    for( int i = 0, w = run(o); i < fanIn; i += len, w += tile * tile )
+      scale(w, len, s);
+  }
+
+  private float rowUpdate(int o, float[] x, float g, float r, float m, float l1_, float l2_) {
+    int fanIn = _previous.units, len = tile == 0 ? fanIn : tile;
+    float r2 = 0;
+    for( int i = 0, w = run(o); i < fanIn; i += len, w += tile * tile )
+      r2 += update(w, x, i, len, g, r, m, l1_, l2_);
+    return r2;
+  }
 
   /**
-   * Apply gradient g to unit u with rate r and momentum m.
+   * Updates n contiguous weights from w with gradient g * x, returns their squared norm.
    */
-  protected final void bprop(int u, float g, float r, float m) {
+  private float update(int w, float[] x, int xo, int n, float g, float r, float m, float l1_, float l2_) {
+    if( optimizer != Optimizer.SGD )
+      return adapt(w, x, xo, n, g, r, l1_, l2_);
+    if( _h != null ) {
+      _norm[0] = 0;
+      _seed = Kernels.update(_h, w, x, xo, n, g, r, l1_, l2_, _seed, _norm);
+      return _norm[0];
+    }
+    if( _wm == null )
+      return Kernels.update(_w, w, x, xo, n, g, r, l1_, l2_);
     float r2 = 0;
-    for( int i = 0; i < _previous._a.length; i++ ) {
-      int w = _wi + u * _previous._a.length + i;
-      if( _previous._e != null )
-        _previous._e[i] += g * _w[w];
-      float d = g * _previous._a[i] - _w[w] * l2 - Math.signum(_w[w]) * l1;
+    for( int i = 0, v = w - _wi; i < n; i++, w++, v++ ) {
+      float d = g * x[xo + i] - _w[w] * l2_ - Math.signum(_w[w]) * l1_;
 
       // TODO finish per-weight acceleration, doesn't help for now
 //      if( _wp != null && d != 0 ) {
@@ -102,26 +345,538 @@ public abstract class Layer implements Cloneable {
 //        _wp[w] = sign ? mult : -mult;
 //      }
 
-      if( _wm != null ) {
-        _wm[w] *= m;
-        _wm[w] = d = _wm[w] + d;
-      }
+      _wm[v] *= m;
+      _wm[v] = d = _wm[v] + d;
       _w[w] += r * d;
       r2 += _w[w] * _w[w];
     }
-    if( r2 > 15 ) { // C.f. Improving neural networks by preventing co-adaptation of feature detectors
-      float scale = (float) Math.sqrt(15 / r2);
-      for( int i = 0; i < _previous._a.length; i++ ) {
-        int w = u * _previous._a.length + i;
-        _w[w] *= scale;
-      }
+    return r2;
+  }
+
+  /**
+   * Same as update for adaptive optimizers. r is the step size.
+   */
+  private float adapt(int w, float[] x, int xo, int n, float g, float r, float l1_, float l2_) {
+    float b1 = beta1, b2 = beta2, eps = epsilon;
+    float r2 = 0;
+    for( int i = 0; i < n; i++, w++ ) {
+      float v = _w[w];
+      v += r * step(w, g * x[xo + i] - v * l2_ - Math.signum(v) * l1_, b1, b2, eps);
+      _w[w] = v;
+      r2 += v * v;
+    }
+    return r2;
+  }
+
+  /**
+   * Number of state values per weight, c.f. state(k, w).
+   */
+  final int states() {
+    return optimizer == Optimizer.Adam ? 2 : optimizer == Optimizer.SGD ? 0 : 1;
+  }
+
+  /**
+   * State k of weight w. Second moment comes first, Adam also has a first moment.
+   */
+  final float state(int k, int w) {
+    if( k == 0 )
+      return _s2 != null ? _s2[w] : Half.toFloat(_s2h[w]);
+    return _s1 != null ? _s1[w] : Half.toFloat(_s1h[w]);
+  }
+
+  final void state(int k, int w, float v) {
+    if( k == 0 ) {
+      if( _s2 != null )
+        _s2[w] = v;
+      else
+        _s2h[w] = Half.round(v);
+    } else {
+      if( _s1 != null )
+        _s1[w] = v;
+      else
+        _s1h[w] = Half.round(v);
+    }
+  }
+
+  /**
+   * Updates state of weight w with gradient d, and returns the step before rate.
+   */
+  private float step(int w, float d, float b1, float b2, float eps) {
+    float s2 = _s2 != null ? _s2[w] : Half.toFloat(_s2h[w]);
+    float s1 = d;
+    switch( optimizer ) {
+      case Adagrad:
+        s2 += d * d;
+        break;
+      case RMSProp:
+        s2 = b2 * s2 + (1 - b2) * d * d;
+        break;
+      case Adam:
+        s1 = b1 * (_s1 != null ? _s1[w] : Half.toFloat(_s1h[w])) + (1 - b1) * d;
+        s2 = b2 * s2 + (1 - b2) * d * d;
+        if( _s1 != null )
+          _s1[w] = s1;
+        else
+          _s1h[w] = Half.round(s1, _seed = Half.next(_seed));
+        break;
+      default:
+        throw new IllegalStateException();
+    }
+    if( _s2 != null )
+      _s2[w] = s2;
+    else
+      _s2h[w] = Half.round(s2, _seed = Half.next(_seed));
+    if( optimizer == Optimizer.Adam )
+      return s1 * _c1 / ((float) Math.sqrt(s2 * _c2) + eps);
+    return s1 / ((float) Math.sqrt(s2) + eps);
+  }
+
+  private void bias(int u, float g, float r, float m) {
+    if( optimizer != Optimizer.SGD ) {
+      _w[_bi + u] += r * step(_bi + u, g, beta1, beta2, epsilon);
+      return;
     }
     float d = g;
-    if( _bm != null ) {
-      _bm[u] *= m;
-      _bm[u] = d = _bm[u] + d;
+    if( _wm != null ) {
+      _wm[_wl + u] *= m;
+      _wm[_wl + u] = d = _wm[_wl + u] + d;
+    }
+    if( _h != null )
+      _h[_bi + u] = Half.round(get(_bi + u) + r * d, _seed = Half.next(_seed));
+    else
+      _w[_bi + u] += r * d;
+  }
+
+  /**
+   * Fully connected forward pass, followed by activation.
+   */
+  protected void fprop(boolean training) {
+    index();
+    if( tile != 0 && !sparse() )
+      fpropTiles();
+    else {
+      for( int o = 0; o < _a.length; o++ )
+        _a[o] = dot(o);
+    }
+    activate(training);
+  }
+
+  private void fpropTiles() {
+    int fanIn = _previous.units;
+    float[] x = _previous._a;
+    for( int o = 0; o < units; o++ )
+      _a[o] = get(_bi + o);
+    int w = _wi;
+    for( int t = 0; t < units; t += tile )
+      for( int i = 0; i < fanIn; i += tile )
+        for( int o = t; o < t + tile; o++, w += tile )
+          _a[o] += dot(w, x, i, tile);
+  }
+
+  // Fraction of non-zero inputs below which sparse kernels are faster
+  static final float SPARSE = .4f;
+
+  /**
+   * Lists non-zero inputs, once per sample, for fprop and bprop to skip the others.
+   */
+  protected final void index() {
+    float[] a = _previous._a;
+    int n = 0;
+    for( int i = 0; i < a.length; i++ )
+      if( a[i] != 0 )
+        _nz[n++] = i;
+    _nzl = n;
+    if( tile != 0 )
+      for( int k = 0; k < n; k++ )
+        _nzw[k] = (_nz[k] / tile) * tile * tile + _nz[k] % tile;
+  }
+
+  final boolean sparse() {
+    return _nzl < SPARSE * _previous._a.length;
+  }
+
+  /**
+   * Recomputes per-sample state of fprop from current row, for trainers that run other samples
+   * between fprop and bprop of a row.
+   */
+  void restore() {
+    index();
+  }
+
+  /**
+   * Weighted sum of inputs and bias for unit o, c.f. index().
+   */
+  protected final float dot(int o) {
+    float[] x = _previous._a;
+    float sum;
+    if( !sparse() )
+      sum = rowDot(o, x);
+    else if( tile == 0 )
+      sum = _h != null ? Kernels.dot(_h, run(o), x, _nz, _nzl) : Kernels.dot(_w, run(o), x, _nz, _nzl);
+    else {
+      sum = 0;
+      int w = run(o);
+      for( int k = 0; k < _nzl; k++ )
+        sum += get(w + _nzw[k]) * x[_nz[k]];
     }
-    _w[_bi + u] += r * d;
+    return sum + get(_bi + o);
+  }
+
+  /**
+   * Applies non-linearity to _a, which contains the weighted sums on input.
+   */
+  protected void activate(boolean training) {
+    activate(0, units, training);
+  }
+
+  /**
+   * Same on units [lo, hi), for element-wise non-linearities.
+   */
+  protected void activate(int lo, int hi, boolean training) {
+  }
+
+  /**
+   * Forward pass of units [lo, hi), for trainers splitting a layer across threads.
+   */
+  final void fprop(int lo, int hi, boolean training) {
+    index();
+    for( int o = lo; o < hi; o++ )
+      _a[o] = dot(o);
+    activate(lo, hi, training);
+  }
+
+  protected abstract void bprop();
+
+  /**
+   * Applies gradients collected in _g to units [lo, hi), and adds their errors to e instead of the
+   * previous layer, for trainers splitting a layer across threads.
+   */
+  final void update(int lo, int hi, float[] e) {
+    float m = _m, r = _r;
+    for( int u = lo; u < hi; u++ ) {
+      if( _hits[u] == 0 )
+        continue;
+      float g = _g[u];
+      if( e != null )
+        rowAxpy(u, g, e);
+      float r2 = rowUpdate(u, _previous._a, g, r, m, l1, l2);
+      if( r2 > 15 )
+        rowScale(u, (float) Math.sqrt(15 / r2));
+      bias(u, g, r, m);
+    }
+    updated();
+  }
+
+  /**
+   * Per-sample backward pass. Tiled layouts collect gradients first, then stream through tiles.
+   */
+  final void backward() {
+    if( tile == 0 || _sums != null ) {
+      bprop();
+      updated();
+      return;
+    }
+    Arrays.fill(_grad, 0);
+    Arrays.fill(_hits, 0);
+    _g = _grad;
+    bprop();
+    _g = null;
+
+    float m = _m, r = _r;
+    int fanIn = _previous.units;
+    float[] x = _previous._a, e = _previous._e;
+    if( e != null ) {
+      int w = _wi;
+      for( int t = 0; t < units; t += tile )
+        for( int i = 0; i < fanIn; i += tile )
+          for( int o = t; o < t + tile; o++, w += tile )
+            if( _grad[o] != 0 )
+              axpy(w, _grad[o], e, i, tile);
+    }
+    Arrays.fill(_r2, 0);
+    int w = _wi;
+    for( int t = 0; t < units; t += tile )
+      for( int i = 0; i < fanIn; i += tile )
+        for( int o = t; o < t + tile; o++, w += tile )
+          if( _hits[o] != 0 )
+            _r2[o] += update(w, x, i, tile, _grad[o], r, m, l1, l2);
+    for( int o = 0; o < units; o++ ) {
+      if( _hits[o] != 0 ) {
+        if( _r2[o] > 15 )
+          rowScale(o, (float) Math.sqrt(15 / _r2[o]));
+        bias(o, _grad[o], r, m);
+      }
+    }
+    updated();
+  }
+
+  static final int TILE = 32;
+
+  /**
+   * Forward pass for n samples as a matrix-matrix product, weights are read once per tile of units
+   * instead of once per sample.
+   */
+  protected void fprop(int n, boolean training) {
+    for( int r = 0; r < n; r++ )
+      for( int o = 0; o < units; o++ )
+        _as[r][o] = get(_bi + o);
+    for( int t = 0; t < units; t += TILE ) {
+      int end = Math.min(t + TILE, units);
+      for( int r = 0; r < n; r++ ) {
+        float[] in = _previous._as[r], a = _as[r];
+        for( int o = t; o < end; o++ )
+          a[o] += rowDot(o, in);
+      }
+    }
+    for( int r = 0; r < n; r++ ) {
+      row(r);
+      activate(training);
+    }
+  }
+
+  /**
+   * Backward pass for n samples. Gradients are first collected per row using the per-sample code,
+   * then applied as matrix-matrix products.
+   */
+  protected void bprop(int n) {
+    Arrays.fill(_hits, 0);
+    for( int r = 0; r < n; r++ ) {
+      _input.row(r);
+      _previous.row(r);
+      row(r);
+      _g = _gs[r];
+      Arrays.fill(_g, 0);
+      bprop();
+    }
+    _g = null;
+
+    float m = _m, rate = _r;
+    int fanIn = _previous.units;
+
+    // Errors on previous layer, using weights before update
+    if( _previous._es != null ) {
+      for( int t = 0; t < units; t += TILE ) {
+        int end = Math.min(t + TILE, units);
+        for( int r = 0; r < n; r++ ) {
+          float[] g = _gs[r], e = _previous._es[r];
+          for( int u = t; u < end; u++ )
+            if( g[u] != 0 )
+              rowAxpy(u, g[u], e);
+        }
+      }
+    }
+
+    for( int u = 0; u < units; u++ ) {
+      if( _hits[u] == 0 )
+        continue;
+      Arrays.fill(_acc, 0);
+      float b = 0;
+      for( int r = 0; r < n; r++ ) {
+        float g = _gs[r][u];
+        if( g != 0 ) {
+          Kernels.axpy(g, _previous._as[r], 0, _acc, 0, fanIn);
+          b += g;
+        }
+      }
+      // Regularization is applied once per sample which touched the unit, as in per-sample mode
+      int h = _hits[u];
+      float r2 = rowUpdate(u, _acc, 1, rate, m, h * l1, h * l2);
+      if( r2 > 15 )
+        rowScale(u, (float) Math.sqrt(15 / r2));
+      bias(u, b, rate, m);
+    }
+    updated();
+  }
+
+  /**
+   * Apply gradient g to unit u with rate r and momentum m.
+   */
+  protected final void bprop(int u, float g, float r, float m) {
+    if( _g != null ) {
+      _g[u] = g;
+      _hits[u]++;
+      return;
+    }
+    float[] e = _previous._e;
+    if( e != null ) {
+      // Rectifiers ignore errors of inactive units, e.g. dropped ones
+      if( _previous instanceof Rectifier && sparse() ) {
+        if( tile == 0 && _h == null )
+          Kernels.axpy(g, _w, run(u), e, _nz, _nzl);
+        else if( tile == 0 )
+          Kernels.axpy(g, _h, run(u), e, _nz, _nzl);
+        else {
+          int w = run(u);
+          for( int k = 0; k < _nzl; k++ )
+            e[_nz[k]] += g * get(w + _nzw[k]);
+        }
+      } else
+        rowAxpy(u, g, e);
+    }
+    if( _sums != null )
+      lazy(u, g, r);
+    else if( sparse() && l1 == 0 && l2 == 0 && _wm == null && _h == null && optimizer == Optimizer.SGD
+        && _norms != null )
+      touched(u, g, r);
+    else {
+      float r2 = rowUpdate(u, _previous._a, g, r, m, l1, l2);
+      if( r2 > 15 ) { // C.f. Improving neural networks by preventing co-adaptation of feature detectors
+        rowScale(u, (float) Math.sqrt(15 / r2));
+        r2 = 15;
+      }
+      if( _norms != null )
+        _norms[u] = r2;
+    }
+    bias(u, g, r, m);
+  }
+
+  /**
+   * Without decay or momentum, weights of zero inputs do not change, so only the others are
+   * updated. As in lazy(), the row norm is tracked, and recomputed when it crosses the max-norm.
+   * Writes from other threads or nodes can make it lag until then.
+   */
+  private void touched(int u, float g, float r) {
+    float[] a = _previous._a;
+    float rg = r * g, norm = _norms[u];
+    int row = run(u);
+    for( int n = 0; n < _nzl; n++ ) {
+      int i = _nz[n];
+      int w = row + (tile == 0 ? i : _nzw[n]);
+      float v = _w[w];
+      norm -= v * v;
+      v += rg * a[i];
+      _w[w] = v;
+      norm += v * v;
+    }
+    if( norm > 15 ) {
+      norm = 0;
+      int fanIn = _previous.units, len = tile == 0 ? fanIn : tile;
+      for( int i = 0, w = row; i < fanIn; i += len, w += tile * tile )
+        norm += Kernels.dot(_w, w, _w, w, len);
+      if( norm > 15 ) {
+        rowScale(u, (float) Math.sqrt(15 / norm));
+        norm = 15;
+      }
+    }
+    _norms[u] = norm;
+  }
+
+  /**
+   * Only touches weights with non-zero input, c.f. index(). The norm of the row is tracked as an
+   * upper bound, as pending decay can only shrink it, and recomputed when it crosses the max-norm.
+   */
+  private void lazy(int u, float g, float r) {
+    float[] a = _previous._a;
+    double last = _sums[u], sum = last + r;
+    _sums[u] = sum;
+    float norm = _norms[u];
+    float rg = r * g, k = 1 - r * l2, s = r * l1;
+    int row = run(u);
+    for( int n = 0; n < _nzl; n++ ) {
+      int i = _nz[n];
+      int w = row + (tile == 0 ? i : _nzw[n]);
+      float v = _w[w];
+      norm -= v * v;
+      if( _stamps[w - _wi] == last ) {
+        // Decayed on previous update, common case
+        v *= k;
+        v = v > s ? v - s : v < -s ? v + s : 0;
+      } else
+        v = decay(v, sum - _stamps[w - _wi]);
+      v += rg * a[i];
+      _stamps[w - _wi] = sum;
+      _w[w] = v;
+      norm += v * v;
+    }
+    if( norm > 15 ) {
+      norm = flush(u, _w, true);
+      if( norm > 15 ) {
+        rowScale(u, (float) Math.sqrt(15 / norm));
+        norm = 15;
+      }
+    }
+    _norms[u] = norm;
+  }
+
+  /**
+   * Catches up on pending decay for a row of w, and returns its squared norm. Stamps are only
+   * moved for live weights.
+   */
+  private float flush(int u, float[] w, boolean live) {
+    double sum = _sums[u];
+    float r2 = 0;
+    for( int i = 0; i < _previous.units; i++ ) {
+      int k = weight(u, i);
+      float v = decay(w[k], sum - _stamps[k - _wi]);
+      if( live )
+        _stamps[k - _wi] = sum;
+      w[k] = v;
+      r2 += v * v;
+    }
+    return r2;
+  }
+
+  /**
+   * Applies pending lazy decay to all weights, e.g. before scoring or saving them.
+   */
+  public void flush() {
+    if( _sums != null )
+      for( int u = 0; u < units; u++ )
+        _norms[u] = flush(u, _w, true);
+  }
+
+  /**
+   * Applies pending lazy decay to a copy of the weights, c.f. Snapshot.
+   */
+  void flush(float[] copy) {
+    if( _sums != null )
+      for( int u = 0; u < units; u++ )
+        flush(u, copy, false);
+  }
+
+  /**
+   * Applies L2 then L1 decay for updates whose rates sum to d. L2 uses exp(-l2 * d), the product
+   * of per-update factors 1 - r * l2 to first order in r * l2. L1 stops at zero instead of
+   * oscillating around it.
+   */
+  private float decay(float v, double d) {
+    if( d == 0 )
+      return v;
+    if( l2 != 0 )
+      v *= (float) Math.exp(-l2 * d);
+    if( l1 != 0 ) {
+      float s = (float) (l1 * d);
+      v = v > s ? v - s : v < -s ? v + s : 0;
+    }
+    return v;
+  }
+
+  /**
+   * Refreshes cached learning rate and momentum, c.f. Trainer.Base.refresh.
+   */
+  final void schedule(long processed) {
+    _m = momentum(processed);
+    _r = rate(processed) * (1 - _m);
+    if( optimizer == Optimizer.Adam ) {
+      _t = processed / (_as != null ? _as.length : 1);
+      corrections();
+    }
+  }
+
+  /**
+   * Counts an update of this clone. Between refreshes, Adam's corrections then follow the updates
+   * of this clone, instead of staying at the progress of the last refresh.
+   */
+  private void updated() {
+    if( optimizer == Optimizer.Adam ) {
+      _t++;
+      corrections();
+    }
+  }
+
+  private void corrections() {
+    _c1 = 1 / (1 - (float) Math.pow(beta1, _t + 1));
+    _c2 = 1 / (1 - (float) Math.pow(beta2, _t + 1));
   }
 
   public float rate(long n) {
@@ -144,18 +899,46 @@ public abstract class Layer implements Cloneable {
     @ParamsSearch.Ignore
     protected long _pos, _len;
 
+    // Shard of the dataset this input loops over, whole dataset if _end is 0
+    @ParamsSearch.Ignore
+    long _begin, _end;
+
+    // Position of each mini-batch row
+    transient long[] _rows;
+
     @Override
     public void init(Layer[] ls, int index, long step) {
       _a = new float[units];
     }
 
+    @Override
+    void buffers(Layer[] ls, int index) {
+      _a = new float[units];
+    }
+
+    @Override
+    public void batch(int size) {
+      _as = new float[size][units];
+      _rows = new long[size];
+    }
+
+    @Override
+    void row(int r) {
+      _a = _as[r];
+      _pos = _rows[r];
+    }
+
+    @Override
+    protected abstract void fprop(boolean training);
+
     @Override
     protected void bprop() {
       throw new UnsupportedOperationException();
     }
 
     public final long move() {
-      return _pos = _pos == _len - 1 ? 0 : _pos + 1;
+      long end = _end != 0 ? _end : _len;
+      return _pos = _pos >= end - 1 ? _begin : _pos + 1;
     }
   }
 
@@ -184,16 +967,11 @@ public abstract class Layer implements Cloneable {
     }
 
     @Override
-    protected void fprop(boolean training) {
+    protected void activate(boolean training) {
       float max = Float.NEGATIVE_INFINITY;
-      for( int o = 0; o < _a.length; o++ ) {
-        _a[o] = 0;
-        for( int i = 0; i < _previous._a.length; i++ )
-          _a[o] += _w[_wi + o * _previous._a.length + i] * _previous._a[i];
-        _a[o] += _w[_bi + o];
+      for( int o = 0; o < _a.length; o++ )
         if( max < _a[o] )
           max = _a[o];
-      }
       float scale = 0;
       for( int o = 0; o < _a.length; o++ ) {
         _a[o] = (float) Math.exp(_a[o] - max);
@@ -205,9 +983,7 @@ public abstract class Layer implements Cloneable {
 
     @Override
     protected void bprop() {
-      long processed = _training.processed();
-      float m = momentum(processed);
-      float r = rate(processed) * (1 - m);
+      float m = _m, r = _r;
       int label = target();
       for( int u = 0; u < _a.length; u++ ) {
         float t = u == label ? 1 : 0;
@@ -223,21 +999,9 @@ public abstract class Layer implements Cloneable {
   public static abstract class Linear extends Output {
     abstract float[] target();
 
-    @Override
-    protected void fprop(boolean training) {
-      for( int o = 0; o < _a.length; o++ ) {
-        _a[o] = 0;
-        for( int i = 0; i < _previous._a.length; i++ )
-          _a[o] += _w[_wi + o * _previous._a.length + i] * _previous._a[i];
-        _a[o] += _w[_bi + o];
-      }
-    }
-
     @Override
     protected void bprop() {
-      long processed = _training.processed();
-      float m = momentum(processed);
-      float r = rate(processed) * (1 - m);
+      float m = _m, r = _r;
       float[] v = target();
       for( int u = 0; u < _a.length; u++ ) {
         float e = v[u] - _a[u];
@@ -266,13 +1030,8 @@ public abstract class Layer implements Cloneable {
     }
 
     @Override
-    protected void fprop(boolean training) {
-      for( int o = 0; o < _a.length; o++ ) {
-        _a[o] = 0;
-        for( int i = 0; i < _previous._a.length; i++ )
-          _a[o] += _w[_wi + o * _previous._a.length + i] * _previous._a[i];
-        _a[o] += _w[_bi + o];
-
+    protected void activate(int lo, int hi, boolean training) {
+      for( int o = lo; o < hi; o++ ) {
         // tanh approx, slightly faster, untested
         // float a = Math.abs(_a[o]);
         // float b = 12 + a * (6 + a * (3 + a));
@@ -287,9 +1046,7 @@ public abstract class Layer implements Cloneable {
 
     @Override
     protected void bprop() {
-      long processed = _training.processed();
-      float m = momentum(processed);
-      float r = rate(processed) * (1 - m);
+      float m = _m, r = _r;
       for( int u = 0; u < _a.length; u++ ) {
         // Gradient is error * derivative of hyperbolic tangent: (1 - x^2)
         float g = _e[u] * (1 - _a[u] * _a[u]);
@@ -328,12 +1085,8 @@ public abstract class Layer implements Cloneable {
     }
 
     @Override
-    protected void fprop(boolean training) {
-      for( int o = 0; o < _a.length; o++ ) {
-        _a[o] = 0;
-        for( int i = 0; i < _previous._a.length; i++ )
-          _a[o] += _w[_wi + o * _previous._a.length + i] * _previous._a[i];
-        _a[o] += _w[_bi + o];
+    protected void activate(int lo, int hi, boolean training) {
+      for( int o = lo; o < hi; o++ ) {
         // TODO test using bit stuff
         //int i = Float.floatToRawIntBits(_a[o]);
         //int s = i & 0x80000000;
@@ -346,9 +1099,7 @@ public abstract class Layer implements Cloneable {
 
     @Override
     protected void bprop() {
-      long processed = _training.processed();
-      float m = momentum(processed);
-      float r = rate(processed) * (1 - m);
+      float m = _m, r = _r;
       for( int u = 0; u < _a.length; u++ ) {
         float g = _e[u];
         if( _a[u] > 0 )
@@ -359,7 +1110,11 @@ public abstract class Layer implements Cloneable {
 
   public static class RectifierDropout extends Rectifier {
     transient Random _rand;
-    transient byte[] _bits;
+    transient int[] _bits;
+
+    // Units kept by current mask
+    transient int[] _active;
+    transient int _activeCount;
 
     RectifierDropout() {
     }
@@ -368,25 +1123,89 @@ public abstract class Layer implements Cloneable {
       super(units);
     }
 
-    @Override
-    protected void fprop(boolean training) {
+    /**
+     * Draws the dropout mask for current sample, and lists kept units. Masks are drawn one int per
+     * 32 units, and kept units are found from set bits, without testing each unit.
+     */
+    final void mask() {
       if( _rand == null ) {
         _rand = new MersenneTwisterRNG();
-        _bits = new byte[(units + 7) / 8];
+        _bits = new int[(units + 31) / 32];
+        _active = new int[units];
       }
-      _rand.nextBytes(_bits);
-      for( int o = 0; o < _a.length; o++ ) {
-        _a[o] = 0;
-        boolean b = (_bits[o / 8] & (1 << (o % 8))) != 0;
-        if( !training || b ) {
-          for( int i = 0; i < _previous._a.length; i++ )
-            _a[o] += _w[_wi + o * _previous._a.length + i] * _previous._a[i];
-          _a[o] += _w[_bi + o];
-          if( _a[o] < 0 )
-            _a[o] = 0;
-          if( !training )
-            _a[o] *= .5f;
+      int n = 0;
+      for( int k = 0; k < _bits.length; k++ ) {
+        int bits = _rand.nextInt();
+        if( k == _bits.length - 1 && units % 32 != 0 )
+          bits &= (1 << units % 32) - 1;
+        _bits[k] = bits;
+        for( ; bits != 0; bits &= bits - 1 )
+          _active[n++] = k * 32 + Integer.numberOfTrailingZeros(bits);
+      }
+      _activeCount = n;
+    }
+
+    final boolean kept(int o) {
+      return (_bits[o >>> 5] & (1 << (o & 31))) != 0;
+    }
+
+    @Override
+    protected void fprop(boolean training) {
+      index();
+      if( training ) {
+        mask();
+        Arrays.fill(_a, 0);
+        for( int k = 0; k < _activeCount; k++ ) {
+          int o = _active[k];
+          float a = dot(o);
+          _a[o] = a > 0 ? a : 0;
         }
+      } else {
+        // No mask needed, scale instead
+        for( int o = 0; o < _a.length; o++ ) {
+          float a = dot(o);
+          _a[o] = a > 0 ? a * .5f : 0;
+        }
+      }
+    }
+
+    @Override
+    void restore() {
+      super.restore();
+      // Kept units are the active ones, others are not updated anyway
+      int n = 0;
+      for( int o = 0; o < units; o++ )
+        if( _a[o] > 0 )
+          _active[n++] = o;
+      _activeCount = n;
+    }
+
+    @Override
+    protected void activate(int lo, int hi, boolean training) {
+      super.activate(lo, hi, training);
+      if( training ) {
+        mask();
+        for( int o = lo; o < hi; o++ )
+          if( !kept(o) )
+            _a[o] = 0;
+      } else {
+        for( int o = lo; o < hi; o++ )
+          _a[o] *= .5f;
+      }
+    }
+
+    @Override
+    protected void bprop() {
+      // Mini-batches only keep the mask of their last row
+      if( _g != null ) {
+        super.bprop();
+        return;
+      }
+      float m = _m, r = _r;
+      for( int k = 0; k < _activeCount; k++ ) {
+        int u = _active[k];
+        if( _a[u] > 0 )
+          bprop(u, _e[u], r, m);
       }
     }
   }
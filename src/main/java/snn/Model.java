@@ -0,0 +1,263 @@
+package snn;
+
+import snn.Layer.Input;
+import snn.Layer.Linear;
+import snn.Layer.Output;
+import snn.Layer.Softmax;
+import snn.NeuralNet.Errors;
+
+/**
+ * Compiled network for inference. Holds only topology and a reference to the weight vector, so
+ * predictions see training updates as they happen. Each thread gets its own scratch buffers,
+ * repeated predictions do not allocate and can run concurrently. Pending lazy decay is applied at
+ * construction on live weights, snapshots have it applied already.
+ */
+public class Model {
+  enum Activation {
+    Linear, Tanh, Rectifier, Dropout, Softmax
+  }
+
+  static final int TILE = 32;
+
+  final int[] _units;
+  final Activation[] _activations;
+  final int _width;
+
+  // Weights, in either storage, and layout of each layer
+  final float[] _w;
+  final short[] _h;
+  final int[] _wi, _bi, _tiles;
+
+  final ThreadLocal<Scratch> _scratch = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return scratch();
+    }
+  };
+
+  // Per-thread buffers for a tile of samples
+  class Scratch {
+    final float[][] _a = new float[TILE][_width], _b = new float[TILE][_width];
+    final float[][] _x = new float[TILE][], _in = new float[1][], _out = new float[1][];
+
+    // For eval
+    final float[][] _inputs = new float[TILE][inputs()], _outputs = new float[TILE][outputs()];
+    final float[][] _targets = new float[TILE][outputs()];
+    final int[] _labels = new int[TILE];
+  }
+
+  public Model(Layer[] ls) {
+    this(ls, ls[ls.length - 1]._w, ls[ls.length - 1]._h);
+    NeuralNet.flush(ls);
+  }
+
+  /**
+   * Scores against a snapshot instead of live weights.
+   */
+  public Model(Layer[] ls, Snapshot.View view) {
+    this(ls, view.w, view.h);
+  }
+
+  private Model(Layer[] ls, float[] w, short[] h) {
+    int layers = ls.length - 1;
+    _units = new int[ls.length];
+    _activations = new Activation[layers];
+    _wi = new int[layers];
+    _bi = new int[layers];
+    _tiles = new int[layers];
+    int width = 0;
+    for( int y = 0; y < ls.length; y++ ) {
+      _units[y] = ls[y].units;
+      width = Math.max(width, ls[y].units);
+    }
+    _width = width;
+    for( int y = 0; y < layers; y++ ) {
+      Layer l = ls[y + 1];
+      _activations[y] = activation(l);
+      _wi[y] = l._wi;
+      _bi[y] = l._bi;
+      _tiles[y] = l.tile;
+    }
+    _w = w;
+    _h = h;
+  }
+
+  Scratch scratch() {
+    return new Scratch();
+  }
+
+  static Activation activation(Layer l) {
+    if( l instanceof Layer.RectifierDropout )
+      return Activation.Dropout;
+    if( l instanceof Layer.Rectifier )
+      return Activation.Rectifier;
+    if( l instanceof Layer.Tanh )
+      return Activation.Tanh;
+    if( l instanceof Softmax )
+      return Activation.Softmax;
+    if( l instanceof Linear )
+      return Activation.Linear;
+    throw new IllegalArgumentException("Unsupported layer " + l.getClass().getName());
+  }
+
+  public final int inputs() {
+    return _units[0];
+  }
+
+  public final int outputs() {
+    return _units[_units.length - 1];
+  }
+
+  public final void predict(float[] in, float[] out) {
+    Scratch s = _scratch.get();
+    s._in[0] = in;
+    s._out[0] = out;
+    predictBatch(s._in, s._out, 1);
+  }
+
+  /**
+   * Runs n samples, weights of each unit are read once per tile of samples.
+   */
+  public void predictBatch(float[][] in, float[][] out, int n) {
+    Scratch s = _scratch.get();
+    float[][] x = s._x;
+    for( int t = 0; t < n; t += TILE ) {
+      int rows = Math.min(TILE, n - t);
+      for( int r = 0; r < rows; r++ )
+        x[r] = in[t + r];
+      for( int y = 0; y < _activations.length; y++ ) {
+        float[][] a = y == _activations.length - 1 ? out : y % 2 == 0 ? s._a : s._b;
+        int offset = a == out ? t : 0;
+        int fanIn = _units[y], units = _units[y + 1];
+        for( int o = 0; o < units; o++ ) {
+          float b = bias(y, o);
+          for( int r = 0; r < rows; r++ )
+            a[offset + r][o] = dot(y, o, fanIn, x[r]) + b;
+        }
+        for( int r = 0; r < rows; r++ ) {
+          activate(_activations[y], a[offset + r], units);
+          x[r] = a[offset + r];
+        }
+      }
+    }
+  }
+
+  // C.f. Layer.weight
+  final float weight(int y, int o, int i) {
+    int tile = _tiles[y], fanIn = _units[y], w;
+    if( tile == 0 )
+      w = _wi[y] + o * fanIn + i;
+    else
+      w = _wi[y] + (o / tile) * tile * fanIn + (i / tile) * tile * tile + (o % tile) * tile + i % tile;
+    return _h != null ? Half.toFloat(_h[w]) : _w[w];
+  }
+
+  final float bias(int y, int o) {
+    return _h != null ? Half.toFloat(_h[_bi[y] + o]) : _w[_bi[y] + o];
+  }
+
+  // C.f. Layer.rowDot
+  private float dot(int y, int o, int fanIn, float[] x) {
+    int tile = _tiles[y], len = tile == 0 ? fanIn : tile;
+    int w = tile == 0 ? _wi[y] + o * fanIn : _wi[y] + (o / tile) * tile * fanIn + (o % tile) * tile;
+    float sum = 0;
+    for( int i = 0; i < fanIn; i += len, w += tile * tile )
+      sum += _h != null ? Kernels.dot(_h, w, x, i, len) : Kernels.dot(_w, w, x, i, len);
+    return sum;
+  }
+
+  static void activate(Activation activation, float[] a, int n) {
+    switch( activation ) {
+      case Linear:
+        break;
+      case Tanh:
+        for( int o = 0; o < n; o++ )
+          a[o] = (float) Math.tanh(a[o]);
+        break;
+      case Rectifier:
+        for( int o = 0; o < n; o++ )
+          a[o] = a[o] > 0 ? a[o] : 0;
+        break;
+      case Dropout:
+        for( int o = 0; o < n; o++ )
+          a[o] = a[o] > 0 ? a[o] * .5f : 0;
+        break;
+      case Softmax:
+        float max = Float.NEGATIVE_INFINITY;
+        for( int o = 0; o < n; o++ )
+          max = Math.max(max, a[o]);
+        float scale = 0;
+        for( int o = 0; o < n; o++ ) {
+          a[o] = (float) Math.exp(a[o] - max);
+          scale += a[o];
+        }
+        for( int o = 0; o < n; o++ )
+          a[o] /= scale;
+        break;
+    }
+  }
+
+  /**
+   * Same as NeuralNet.eval, layers are only used to read inputs and targets.
+   */
+  public Errors eval(Layer[] ls, long n, long[][] cm) {
+    Errors e = new Errors();
+    long len = NeuralNet.length(ls, n);
+    long correct = eval(ls, 0, len, e, cm);
+    ((Input) ls[0])._pos = 0;
+    return NeuralNet.finish(ls, e, correct, len);
+  }
+
+  /**
+   * Same as NeuralNet.evalParallel. Threads share this model, each with its own scratch buffers.
+   */
+  public Errors evalParallel(Layer[] ls, long n, long[][] cm) {
+    return NeuralNet.evalParallel(ls, this, n, cm);
+  }
+
+  /**
+   * Scores samples in [start, end), adds square errors to e, and returns the number of correct
+   * classifications.
+   */
+  long eval(Layer[] ls, long start, long end, Errors e, long[][] cm) {
+    Scratch s = _scratch.get();
+    Input input = (Input) ls[0];
+    Output output = (Output) ls[ls.length - 1];
+    long correct = 0;
+    for( long t = start; t < end; t += TILE ) {
+      int rows = (int) Math.min(TILE, end - t);
+      for( int r = 0; r < rows; r++ ) {
+        input._pos = t + r;
+        input.fprop(false);
+        System.arraycopy(input._a, 0, s._inputs[r], 0, inputs());
+        if( output instanceof Softmax )
+          s._labels[r] = ((Softmax) output).target();
+        else
+          System.arraycopy(((Linear) output).target(), 0, s._targets[r], 0, outputs());
+      }
+      predictBatch(s._inputs, s._outputs, rows);
+      for( int r = 0; r < rows; r++ ) {
+        float[] o = s._outputs[r];
+        if( output instanceof Softmax ) {
+          int label = s._labels[r], idx = 0;
+          for( int k = 0; k < o.length; k++ ) {
+            float d = (k == label ? 1 : 0) - o[k];
+            e.mean_square += d * d;
+            if( o[k] > o[idx] )
+              idx = k;
+          }
+          if( cm != null )
+            cm[label][idx]++;
+          if( idx == label )
+            correct++;
+        } else {
+          for( int k = 0; k < o.length; k++ ) {
+            float d = s._targets[r][k] - o[k];
+            e.mean_square += d * d;
+          }
+        }
+      }
+    }
+    return correct;
+  }
+}
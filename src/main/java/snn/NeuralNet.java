@@ -1,6 +1,9 @@
 package snn;
 
+import java.io.*;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import snn.Layer.Input;
 import snn.Layer.Linear;
@@ -9,6 +12,13 @@ import snn.Layer.Softmax;
 
 public class NeuralNet {
   public static float[] init(Layer[] ls, boolean randomize) {
+    return init(ls, randomize ? new MersenneTwisterRNG() : null);
+  }
+
+  /**
+   * Randomizes weights from given generator if not null, e.g. seeded for reproducible runs.
+   */
+  public static float[] init(Layer[] ls, Random rand) {
     for( int i = 0; i < ls.length; i++ )
       ls[i].init(ls, i, 0);
     Layer last = ls[ls.length - 1];
@@ -16,16 +26,148 @@ public class NeuralNet {
     if( len % Streamer.BLOCK != 0 )
       len += Streamer.BLOCK - len % Streamer.BLOCK;
     float[] w = new float[len];
-    for( int i = 0; i < ls.length; i++ )
+    for( int i = 0; i < ls.length; i++ ) {
       ls[i]._w = w;
-    if( randomize ) {
-      Random rand = new MersenneTwisterRNG();
+      ls[i].share();
+    }
+    state(ls, len);
+    if( rand != null )
       for( int i = 0; i < ls.length; i++ )
         ls[i].randomize(rand);
-    }
     return w;
   }
 
+  private static void state(Layer l, Layer.Optimizer saved, int k, int w, float v) {
+    if( saved == l.optimizer )
+      l.state(k, w, v);
+  }
+
+  /**
+   * Allocates optimizer state as vectors parallel to weights, so that a weight and its state have
+   * the same index, and Streamer blocks cover the same ranges in both.
+   */
+  private static void state(Layer[] ls, int len) {
+    float[] s1 = null, s2 = null;
+    short[] s1h = null, s2h = null;
+    for( int i = 1; i < ls.length; i++ ) {
+      Layer l = ls[i];
+      if( l.optimizer == Layer.Optimizer.SGD )
+        continue;
+      boolean adam = l.optimizer == Layer.Optimizer.Adam;
+      if( l.halfState ) {
+        l._s2h = s2h = s2h != null ? s2h : new short[len];
+        if( adam )
+          l._s1h = s1h = s1h != null ? s1h : new short[len];
+      } else {
+        l._s2 = s2 = s2 != null ? s2 : new float[len];
+        if( adam )
+          l._s1 = s1 = s1 != null ? s1 : new float[len];
+      }
+    }
+  }
+
+  /**
+   * Same as init, but stores weights as bfloat16, c.f. Half. Weights are initialized in float
+   * then rounded.
+   */
+  public static short[] initHalf(Layer[] ls, boolean randomize) {
+    return initHalf(ls, randomize ? new MersenneTwisterRNG() : null);
+  }
+
+  public static short[] initHalf(Layer[] ls, Random rand) {
+    short[] h = Half.round(init(ls, rand));
+    for( int i = 0; i < ls.length; i++ )
+      ls[i].half(h);
+    return h;
+  }
+
+  /**
+   * Applies pending lazy decay, c.f. Layer.lazyDecay.
+   */
+  static void flush(Layer[] ls) {
+    for( int y = 1; y < ls.length; y++ )
+      ls[y].flush();
+  }
+
+  /**
+   * Writes weights and biases in row-major order, so that checkpoints do not depend on layouts.
+   */
+  public static void save(Layer[] ls, File file) {
+    flush(ls);
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      out.writeInt(ls.length);
+      for( int y = 0; y < ls.length; y++ )
+        out.writeInt(ls[y].units);
+      for( int y = 1; y < ls.length; y++ ) {
+        Layer l = ls[y];
+        for( int o = 0; o < l.units; o++ )
+          for( int i = 0; i < l._previous.units; i++ )
+            out.writeFloat(l.get(l.weight(o, i)));
+        for( int o = 0; o < l.units; o++ )
+          out.writeFloat(l.get(l._bi + o));
+      }
+      // Optimizer state, same order as weights
+      for( int y = 1; y < ls.length; y++ ) {
+        Layer l = ls[y];
+        out.writeInt(l.optimizer.ordinal());
+        for( int k = 0; k < l.states(); k++ ) {
+          for( int o = 0; o < l.units; o++ )
+            for( int i = 0; i < l._previous.units; i++ )
+              out.writeFloat(l.state(k, l.weight(o, i)));
+          for( int o = 0; o < l.units; o++ )
+            out.writeFloat(l.state(k, l._bi + o));
+        }
+      }
+      out.close();
+    } catch( IOException e ) {
+      throw new RuntimeException(e);
+    } finally {
+      Utils.close(out);
+    }
+  }
+
+  /**
+   * Reads a checkpoint written by save, into layers of same topology and any layout.
+   */
+  public static void load(Layer[] ls, File file) {
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      boolean same = in.readInt() == ls.length;
+      for( int y = 0; same && y < ls.length; y++ )
+        same = in.readInt() == ls[y].units;
+      if( !same )
+        throw new IllegalArgumentException("Checkpoint topology differs from layers");
+      for( int y = 1; y < ls.length; y++ ) {
+        Layer l = ls[y];
+        for( int o = 0; o < l.units; o++ )
+          for( int i = 0; i < l._previous.units; i++ )
+            l.set(l.weight(o, i), in.readFloat());
+        for( int o = 0; o < l.units; o++ )
+          l.set(l._bi + o, in.readFloat());
+      }
+      // Optimizer state is only restored for the same optimizer, otherwise it starts fresh
+      for( int y = 1; y < ls.length && in.available() > 0; y++ ) {
+        Layer l = ls[y];
+        Layer.Optimizer saved = Layer.Optimizer.values()[in.readInt()];
+        int states = saved == Layer.Optimizer.Adam ? 2 : saved == Layer.Optimizer.SGD ? 0 : 1;
+        for( int k = 0; k < states; k++ ) {
+          for( int o = 0; o < l.units; o++ )
+            for( int i = 0; i < l._previous.units; i++ )
+              state(l, saved, k, l.weight(o, i), in.readFloat());
+          for( int o = 0; o < l.units; o++ )
+            state(l, saved, k, l._bi + o, in.readFloat());
+        }
+      }
+    } catch( IOException e ) {
+      throw new RuntimeException(e);
+    } finally {
+      Utils.close(in);
+    }
+  }
+
   public static class Errors {
     public long training_samples;
 
@@ -50,30 +192,127 @@ public class NeuralNet {
       clones[y] = ls[y].clone();
     clones[clones.length - 1] = output;
     for( int y = 0; y < clones.length; y++ )
-      clones[y].init(clones, y, 0);
+      clones[y].buffers(clones, y);
     return eval(clones, n, cm);
   }
 
   public static Errors eval(Layer[] ls, long n, long[][] cm) {
+    flush(ls);
+    Errors e = new Errors();
+    long len = length(ls, n);
+    long correct = eval(ls, 0, len, e, cm);
+    return finish(ls, e, correct, len);
+  }
+
+  private static final ForkJoinPool _pool = new ForkJoinPool();
+
+  /**
+   * Same as eval, on all cores. Ranges of samples are scored by clones of the layers, and errors
+   * and confusion matrices are summed at the end.
+   */
+  public static Errors evalParallel(Layer[] ls, long n, long[][] cm) {
+    flush(ls);
+    return evalParallel(ls, null, n, cm);
+  }
+
+  /**
+   * Scores with model if not null, layers are then only used to read inputs and targets.
+   */
+  static Errors evalParallel(Layer[] ls, Model model, long n, long[][] cm) {
+    long len = length(ls, n);
+    long grain = Math.max(16, len / (4 * _pool.getParallelism()));
+    Range range = new Range(ls, model, 0, len, grain, cm != null ? cm.length : 0);
+    _pool.invoke(range);
+    if( cm != null )
+      for( int i = 0; i < cm.length; i++ )
+        for( int j = 0; j < cm[i].length; j++ )
+          cm[i][j] += range._cm[i][j];
     Errors e = new Errors();
+    e.mean_square = range._mse;
+    return finish(ls, e, range._correct, len);
+  }
+
+  private static final class Range extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    final Layer[] _ls;
+    final Model _model;
+    final long _start, _end, _grain;
+    final int _classes;
+    double _mse;
+    long _correct;
+    long[][] _cm;
+
+    Range(Layer[] ls, Model model, long start, long end, long grain, int classes) {
+      _ls = ls;
+      _model = model;
+      _start = start;
+      _end = end;
+      _grain = grain;
+      _classes = classes;
+    }
+
+    @Override
+    protected void compute() {
+      if( _classes != 0 )
+        _cm = new long[_classes][_classes];
+      if( _end - _start <= _grain ) {
+        Layer[] clones = new Layer[_ls.length];
+        for( int y = 0; y < clones.length; y++ )
+          clones[y] = _ls[y].clone();
+        // Scoring clones, without training state or clone numbers, c.f. Layer.init
+        for( int y = 0; y < clones.length; y++ )
+          clones[y].buffers(clones, y);
+        Errors e = new Errors();
+        if( _model != null )
+          _correct = _model.eval(clones, _start, _end, e, _cm);
+        else
+          _correct = eval(clones, _start, _end, e, _cm);
+        _mse = e.mean_square;
+      } else {
+        long mid = (_start + _end) >>> 1;
+        Range a = new Range(_ls, _model, _start, mid, _grain, _classes);
+        Range b = new Range(_ls, _model, mid, _end, _grain, _classes);
+        invokeAll(a, b);
+        _mse = a._mse + b._mse;
+        _correct = a._correct + b._correct;
+        for( int i = 0; i < _classes; i++ )
+          for( int j = 0; j < _classes; j++ )
+            _cm[i][j] = a._cm[i][j] + b._cm[i][j];
+      }
+    }
+  }
+
+  static long length(Layer[] ls, long n) {
+    long len = ((Input) ls[0])._len;
+    return n != 0 ? Math.min(len, n) : len;
+  }
+
+  /**
+   * Scores samples in [start, end), adds square errors to e, and returns the number of correct
+   * classifications.
+   */
+  private static long eval(Layer[] ls, long start, long end, Errors e, long[][] cm) {
     Input input = (Input) ls[0];
-    long len = input._len;
-    if( n != 0 )
-      len = Math.min(len, n);
-    if( ls[ls.length - 1] instanceof Softmax ) {
-      int correct = 0;
-      for( input._pos = 0; input._pos < len; input._pos++ )
+    boolean softmax = ls[ls.length - 1] instanceof Softmax;
+    long correct = 0;
+    for( input._pos = start; input._pos < end; input._pos++ ) {
+      if( softmax ) {
         if( correct(ls, e, cm) )
           correct++;
-      e.classification = (len - (double) correct) / len;
-      e.mean_square /= len;
-    } else {
-      for( input._pos = 0; input._pos < len; input._pos++ )
+      } else
         error(ls, e);
-      e.classification = Double.NaN;
-      e.mean_square /= len;
     }
     input._pos = 0;
+    return correct;
+  }
+
+  static Errors finish(Layer[] ls, Errors e, long correct, long len) {
+    if( ls[ls.length - 1] instanceof Softmax )
+      e.classification = (len - (double) correct) / len;
+    else
+      e.classification = Double.NaN;
+    e.mean_square /= len;
     return e;
   }
 
@@ -0,0 +1,78 @@
+package snn;
+
+import java.util.Arrays;
+
+/**
+ * Approximate priority queue of blocks, c.f. Streamer.prioritized. Blocks are kept in buckets by
+ * power of 2 of their priority, as intrusive linked lists, so that updates are O(1) and polls only
+ * scan bucket heads. Blocks of a bucket are polled in insertion order.
+ */
+final class Priorities {
+  static final int LEVELS = 64, OFFSET = 48;
+
+  private final int[] _heads = new int[LEVELS], _tails = new int[LEVELS];
+  private final int[] _next, _prev, _level;
+
+  Priorities(int blocks) {
+    _next = new int[blocks];
+    _prev = new int[blocks];
+    _level = new int[blocks];
+    Arrays.fill(_heads, -1);
+    Arrays.fill(_tails, -1);
+    Arrays.fill(_level, -1);
+  }
+
+  static int level(double priority) {
+    return Math.max(0, Math.min(LEVELS - 1, Math.getExponent(priority) + OFFSET));
+  }
+
+  /**
+   * Priority 0 removes the block.
+   */
+  void set(int block, double priority) {
+    int level = priority > 0 ? level(priority) : -1;
+    if( level == _level[block] )
+      return;
+    remove(block);
+    if( level >= 0 ) {
+      _level[block] = level;
+      _prev[block] = _tails[level];
+      _next[block] = -1;
+      if( _tails[level] >= 0 )
+        _next[_tails[level]] = block;
+      else
+        _heads[level] = block;
+      _tails[level] = block;
+    }
+  }
+
+  /**
+   * Removes and returns a block of highest bucket, or -1 if empty.
+   */
+  int poll() {
+    for( int level = LEVELS - 1; level >= 0; level-- ) {
+      int block = _heads[level];
+      if( block >= 0 ) {
+        remove(block);
+        return block;
+      }
+    }
+    return -1;
+  }
+
+  private void remove(int block) {
+    int level = _level[block];
+    if( level < 0 )
+      return;
+    int prev = _prev[block], next = _next[block];
+    if( prev >= 0 )
+      _next[prev] = next;
+    else
+      _heads[level] = next;
+    if( next >= 0 )
+      _prev[next] = prev;
+    else
+      _tails[level] = prev;
+    _level[block] = -1;
+  }
+}
@@ -0,0 +1,131 @@
+package snn;
+
+/**
+ * Int8 inference engine for trained networks. Weights are quantized per unit, with a scale mapping
+ * the largest magnitude of the row to 127. Activations are quantized per sample and layer, and dot
+ * products accumulate in int. Weights are copied at construction, so training can continue, and
+ * can be copied again with quantize(), e.g. after a new snapshot.
+ */
+public class Quantized extends Model {
+  final byte[][] _q;
+  final float[][] _scales, _biases;
+
+  final class QScratch extends Scratch {
+    final byte[][] _q = new byte[TILE][_width];
+    final float[] _qs = new float[TILE];
+  }
+
+  public Quantized(Layer[] ls) {
+    super(ls);
+    _q = new byte[_activations.length][];
+    _scales = new float[_activations.length][];
+    _biases = new float[_activations.length][];
+    allocate();
+    quantize();
+  }
+
+  public Quantized(Layer[] ls, Snapshot.View view) {
+    super(ls, view);
+    _q = new byte[_activations.length][];
+    _scales = new float[_activations.length][];
+    _biases = new float[_activations.length][];
+    allocate();
+    quantize();
+  }
+
+  private void allocate() {
+    for( int y = 0; y < _q.length; y++ ) {
+      int fanIn = _units[y], units = _units[y + 1];
+      _q[y] = new byte[units * fanIn];
+      _scales[y] = new float[units];
+      _biases[y] = new float[units];
+    }
+  }
+
+  /**
+   * Copies and quantizes the weights again, into the same buffers.
+   */
+  public void quantize() {
+    for( int y = 0; y < _q.length; y++ ) {
+      int fanIn = _units[y], units = _units[y + 1];
+      for( int o = 0; o < units; o++ ) {
+        float max = 0;
+        for( int i = 0; i < fanIn; i++ )
+          max = Math.max(max, Math.abs(weight(y, o, i)));
+        float scale = max / 127;
+        for( int i = 0; i < fanIn; i++ )
+          _q[y][o * fanIn + i] = scale == 0 ? 0 : (byte) Math.round(weight(y, o, i) / scale);
+        _scales[y][o] = scale;
+        _biases[y][o] = bias(y, o);
+      }
+    }
+  }
+
+  @Override
+  Scratch scratch() {
+    return new QScratch();
+  }
+
+  @Override
+  public void predictBatch(float[][] in, float[][] out, int n) {
+    QScratch s = (QScratch) _scratch.get();
+    float[][] x = s._x;
+    for( int t = 0; t < n; t += TILE ) {
+      int rows = Math.min(TILE, n - t);
+      for( int r = 0; r < rows; r++ )
+        x[r] = in[t + r];
+      for( int y = 0; y < _q.length; y++ ) {
+        // Inputs are quantized first, so their buffers can receive outputs
+        float[][] buffers = y % 2 == 0 ? s._a : s._b;
+        for( int r = 0; r < rows; r++ ) {
+          s._qs[r] = quantize(x[r], _units[y], s._q[r]);
+          x[r] = y == _q.length - 1 ? out[t + r] : buffers[r];
+        }
+        layer(y, s, x, rows);
+      }
+    }
+  }
+
+  private void layer(int y, QScratch s, float[][] a, int rows) {
+    int fanIn = _units[y], units = _units[y + 1];
+    byte[] w = _q[y];
+    float[] scales = _scales[y], biases = _biases[y];
+    for( int o = 0; o < units; o++ )
+      for( int r = 0; r < rows; r++ )
+        a[r][o] = dot(w, o * fanIn, s._q[r], fanIn) * scales[o] * s._qs[r] + biases[o];
+    for( int r = 0; r < rows; r++ )
+      activate(_activations[y], a[r], units);
+  }
+
+  /**
+   * Returns the scale of quantized values.
+   */
+  static float quantize(float[] x, int n, byte[] q) {
+    float max = 0;
+    for( int i = 0; i < n; i++ )
+      max = Math.max(max, Math.abs(x[i]));
+    if( max == 0 ) {
+      for( int i = 0; i < n; i++ )
+        q[i] = 0;
+      return 0;
+    }
+    float inv = 127 / max;
+    for( int i = 0; i < n; i++ )
+      q[i] = (byte) Math.round(x[i] * inv);
+    return max / 127;
+  }
+
+  static int dot(byte[] w, int wo, byte[] x, int n) {
+    int s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+    int i = 0;
+    for( ; i <= n - 4; i += 4 ) {
+      s0 += w[wo + i + 0] * x[i + 0];
+      s1 += w[wo + i + 1] * x[i + 1];
+      s2 += w[wo + i + 2] * x[i + 2];
+      s3 += w[wo + i + 3] * x[i + 3];
+    }
+    for( ; i < n; i++ )
+      s0 += w[wo + i] * x[i];
+    return (s0 + s1) + (s2 + s3);
+  }
+}
@@ -0,0 +1,47 @@
+package snn;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free single-producer single-consumer queue of ints, e.g. slot indexes. Head and tail are
+ * each written by one side only, on separate padded slots, c.f. Counter.
+ */
+final class Ring {
+  private final int[] _values;
+  private final int _mask;
+  private final AtomicLongArray _counters = new AtomicLongArray(3 * Counter.PAD);
+  private static final int HEAD = Counter.PAD, TAIL = 2 * Counter.PAD;
+
+  /**
+   * Capacity is rounded up to a power of 2.
+   */
+  Ring(int capacity) {
+    int n = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    _values = new int[n];
+    _mask = n - 1;
+  }
+
+  /**
+   * Returns false if full.
+   */
+  boolean offer(int value) {
+    long tail = _counters.get(TAIL);
+    if( tail - _counters.get(HEAD) == _values.length )
+      return false;
+    _values[(int) tail & _mask] = value;
+    _counters.lazySet(TAIL, tail + 1);
+    return true;
+  }
+
+  /**
+   * Returns -1 if empty.
+   */
+  int poll() {
+    long head = _counters.get(HEAD);
+    if( head == _counters.get(TAIL) )
+      return -1;
+    int value = _values[(int) head & _mask];
+    _counters.lazySet(HEAD, head + 1);
+    return value;
+  }
+}
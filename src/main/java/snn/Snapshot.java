@@ -0,0 +1,67 @@
+package snn;
+
+/**
+ * Double-buffered copies of the weight vector, for scoring while training runs. Taking a snapshot
+ * is one array copy, trainers never pause. Hogwild threads keep writing during the copy, so a
+ * snapshot is stamped with the number of samples processed before and after it. Pending lazy decay
+ * is applied to the copy.
+ */
+public class Snapshot {
+  final Layer[] _ls;
+  final float[] _w;
+  final short[] _h;
+  private final View[] _views = new View[2];
+  private volatile View _current;
+
+  public static final class View {
+    public long processedBefore, processedAfter;
+    public final float[] w;
+    public final short[] h;
+
+    View(float[] w, short[] h) {
+      this.w = w;
+      this.h = h;
+    }
+  }
+
+  /**
+   * Snapshots the weights of given layers, which use the same vector.
+   */
+  public Snapshot(Layer[] ls) {
+    Layer last = ls[ls.length - 1];
+    _ls = ls;
+    _w = last._w;
+    _h = last._h;
+    for( int i = 0; i < _views.length; i++ )
+      _views[i] = new View(_w != null ? new float[_w.length] : null, _h != null ? new short[_h.length] : null);
+  }
+
+  /**
+   * Copies the live weights into the back buffer and makes it current. The previous view stays
+   * valid until next call.
+   */
+  public synchronized View take(Trainer trainer) {
+    View view = _views[0] == _current ? _views[1] : _views[0];
+    view.processedBefore = trainer == null ? 0 : trainer.processed();
+    if( _w != null ) {
+      System.arraycopy(_w, 0, view.w, 0, _w.length);
+      for( int y = 1; y < _ls.length; y++ )
+        _ls[y].flush(view.w);
+    } else
+      System.arraycopy(_h, 0, view.h, 0, _h.length);
+    view.processedAfter = trainer == null ? 0 : trainer.processed();
+    _current = view;
+    return view;
+  }
+
+  public View current() {
+    return _current;
+  }
+
+  /**
+   * One of the two buffers, e.g. to build a scoring engine per buffer once, c.f. Model.
+   */
+  public View view(int i) {
+    return _views[i];
+  }
+}
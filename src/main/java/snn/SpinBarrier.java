@@ -0,0 +1,32 @@
+package snn;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reusable barrier for small teams of threads synchronizing many times per sample. Waiting threads
+ * spin on a phase number instead of parking, and yield after a while in case cores are
+ * oversubscribed.
+ */
+final class SpinBarrier {
+  static final int SPINS = 1 << 10;
+
+  private final int _parties;
+  private final AtomicInteger _waiting = new AtomicInteger();
+  private volatile int _phase;
+
+  SpinBarrier(int parties) {
+    _parties = parties;
+  }
+
+  void await() {
+    int phase = _phase;
+    if( _waiting.incrementAndGet() == _parties ) {
+      _waiting.set(0);
+      _phase = phase + 1;
+      return;
+    }
+    for( int spins = 0; _phase == phase; spins++ )
+      if( spins > SPINS )
+        Thread.yield();
+  }
+}
@@ -1,9 +1,12 @@
 package snn;
 
 import java.io.IOException;
-import java.net.SocketAddress;
+import java.net.*;
 import java.nio.*;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
 import java.util.BitSet;
 
 public class Streamer {
@@ -12,19 +15,111 @@ public class Streamer {
   static final int BLOCK = PACKET / 4 - HEADER;
 
   float[] _w, _last;
+  short[] _h; // 16-bit weights, c.f. NeuralNet.initHalf
+  int _seed = (int) System.nanoTime() | 1;
   SocketAddress[] _nodes;
   int _local, _mask;
   BitSet _receivedBlocks;
   int _blocks, _remainingBlocks;
 
-  DatagramChannel _channel;
-  ByteBuffer _buffer = ByteBuffer.allocateDirect(PACKET).order(ByteOrder.nativeOrder());
-  FloatBuffer _floats = _buffer.asFloatBuffer();
+  DatagramChannel _channel, _multicast;
+  Selector _selector;
+  SelectionKey _key;
+  // Outgoing and incoming packets, separate as sends can wait on receives
+  ByteBuffer _buffer, _in;
+  FloatBuffer _floats, _inFloats;
+  ShortBuffer _shorts, _inShorts;
 
-  public volatile long _sent, _received, _cycles;
+  public volatile long _sent, _received, _cycles, _blocked, _forwarded;
+
+  /**
+   * When set, masters send each block once to this multicast group, instead of once per node. All
+   * nodes join it on the interface of their local address, and must use the same group.
+   */
+  public InetSocketAddress group;
+
+  /**
+   * Without multicast, masters can send blocks down a tree of this degree instead of to all nodes.
+   * Nodes are ranked from the block's master, and forward its packets to ranks r * fanout + 1 to
+   * r * fanout + fanout, so that each node sends at most fanout packets per block.
+   */
+  public int fanout;
+
+  // Received packets waiting to be forwarded, bounded as forwards are best effort
+  final ArrayDeque<ByteBuffer> _forwards = new ArrayDeque<ByteBuffer>(), _pool = new ArrayDeque<ByteBuffer>();
+  static final int MAX_FORWARDS = 256;
+
+  /**
+   * Target send rate in bytes per second, 0 for none. Sends draw from a token bucket, which holds
+   * up to BURST packets or 10ms of traffic, whichever is larger.
+   */
+  public long bandwidth;
+  double _tokens;
+  long _refilled, _cycleSent;
+  static final int BURST = 64;
+
+  // Cycles which send nothing wait for packets, twice longer each time up to IDLE_MS, which
+  // bounds latency of new deltas
+  static final long IDLE_MS = 32;
+  long _idle = 1;
+
+  // Masters resend unchanged blocks after this long, so that replicas recover from lost packets
+  static final long RESEND_MS = 1000;
+  long[] _sentAt;
+
+  /**
+   * Compresses deltas sent to masters, must be the same on all nodes. Coded blocks of a master are
+   * packed in one packet, each after its block index. Masters always send values, so that lost
+   * packets do not leave replicas out of sync.
+   */
+  public Codec codec;
+  private final float[] _deltas = new float[BLOCK];
+  // Hashes of blocks when last encoded, as residuals of lossy codecs rarely reach 0
+  long[] _encoded;
+
+  /**
+   * When set, deltas are sent as sparse packets of (index, value) pairs, which can span blocks of
+   * a master. Only deltas above a threshold are sent, others are kept until they cross it. The
+   * threshold adapts each cycle so that about this fraction of weights is sent.
+   */
+  public float density;
+
+  /**
+   * When set, blocks with most pending change are sent first, instead of round-robin. Each send
+   * slot also scans one block to update its priority, its squared norm of change since last sent.
+   */
+  public boolean prioritized;
+  Priorities _priorities;
+  int _scan, _robin;
+  long _slots;
+
+  // One send slot in this many goes round-robin, bounding staleness of slow blocks, e.g. after
+  // lost packets
+  static final int ROUND_ROBIN = 8;
+  // Packets being filled per master, of sparse pairs or coded blocks
+  ByteBuffer[] _sparse;
+  int[] _counts;
+  float _threshold;
+  double _sumAbs;
+  long _scanned, _sentValues;
+
+  final Tasks.Scope _scope = new Tasks.Scope("Streamer");
 
   public Streamer(float[] w, SocketAddress[] nodes, int local) {
+    this(w, null, nodes, local);
+  }
+
+  /**
+   * For 16-bit weights. Packets carry bfloat16 values, half the size of float ones, for the same
+   * blocks.
+   */
+  public Streamer(short[] h, SocketAddress[] nodes, int local) {
+    this(null, h, nodes, local);
+  }
+
+  private Streamer(float[] w, short[] h, SocketAddress[] nodes, int local) {
     _w = w;
+    _h = h;
     _nodes = nodes;
     _local = local;
 
@@ -32,10 +127,29 @@ public class Streamer {
       throw new IllegalArgumentException();
     _mask = nodes.length - 1;
 
-    _last = _w.clone();
-    _receivedBlocks = new BitSet(w.length);
-    assert _w.length % BLOCK == 0;
-    _blocks = _w.length / BLOCK;
+    int length = w != null ? w.length : h.length;
+    _buffer = ByteBuffer.allocateDirect(h != null ? HEADER * 4 + BLOCK * 2 : PACKET);
+    _buffer.order(ByteOrder.nativeOrder());
+    _floats = _buffer.asFloatBuffer();
+    _shorts = _buffer.asShortBuffer();
+    _in = ByteBuffer.allocateDirect(PACKET);
+    _in.order(ByteOrder.nativeOrder());
+    _inFloats = _in.asFloatBuffer();
+    _inShorts = _in.asShortBuffer();
+    _last = new float[length];
+    for( int i = 0; i < length; i++ )
+      _last[i] = get(i);
+    _receivedBlocks = new BitSet(length);
+    _sparse = new ByteBuffer[nodes.length];
+    _counts = new int[nodes.length];
+    for( int i = 0; i < nodes.length; i++ ) {
+      _sparse[i] = ByteBuffer.allocateDirect(PACKET);
+      _sparse[i].order(ByteOrder.nativeOrder());
+    }
+    assert length % BLOCK == 0;
+    _blocks = length / BLOCK;
+    _sentAt = new long[_blocks];
+    _encoded = new long[_blocks];
     _remainingBlocks = _blocks;
     for( int block = 0; block < _blocks; block++ ) {
       if( _local == master(block) ) {
@@ -46,98 +160,423 @@ public class Streamer {
   }
 
   public void start() {
-    Thread thread = new Thread() {
+    _scope.compute("Streamer", new Runnable() {
       @Override
       public void run() {
         try {
-          DatagramChannel channel = DatagramChannel.open();
-          //_socket.socket().setReuseAddress(true);
-          // TODO bench 'connect'
-          channel.socket().bind(_nodes[_local]);
-          channel.configureBlocking(false);
-          _channel = channel;
+          open();
         } catch( IOException e ) {
+          Utils.close(_selector, _multicast, _channel);
           throw new RuntimeException(e);
         }
 
         try {
           int block = 0;
-          for( ;; ) {
-            send(block);
-            if( ++block == _blocks ) {
-              block = 0;
-              _cycles++;
+          if( prioritized ) {
+            _priorities = new Priorities(_blocks);
+            // Masters first send all their blocks
+            for( int b = 0; b < _blocks; b++ )
+              if( _local == master(b) )
+                _priorities.set(b, Double.MAX_VALUE);
+          }
+          while( !Thread.currentThread().isInterrupted() ) {
+            if( _priorities != null )
+              schedule();
+            else {
+              send(block);
+              if( ++block == _blocks ) {
+                block = 0;
+                _cycles++;
+                cycle();
+              }
             }
-
-//            try {
-//              Thread.sleep(1000);
-//            } catch( InterruptedException ex ) {
-//            }
-
-            receive();
+            drain();
+            forward();
           }
         } catch( IOException e ) {
           throw new RuntimeException(e);
+        } finally {
+          Utils.close(_selector, _multicast, _channel);
         }
       }
-    };
-//    thread.setDaemon(true);
-    thread.start();
+    });
+  }
+
+  private void open() throws IOException {
+    DatagramChannel channel;
+    if( group != null )
+      channel = DatagramChannel.open(StandardProtocolFamily.INET);
+    else
+      channel = DatagramChannel.open();
+    _channel = channel;
+    //_socket.socket().setReuseAddress(true);
+    // TODO bench 'connect'
+    channel.socket().bind(_nodes[_local]);
+    channel.configureBlocking(false);
+    _selector = Selector.open();
+    _key = channel.register(_selector, SelectionKey.OP_READ);
+    if( group != null ) {
+      InetAddress local = ((InetSocketAddress) _nodes[_local]).getAddress();
+      NetworkInterface ni = NetworkInterface.getByInetAddress(local);
+      if( ni == null )
+        throw new IOException("No interface for " + local);
+      channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, ni);
+      // Nodes on the same host share the group port
+      DatagramChannel multicast = DatagramChannel.open(StandardProtocolFamily.INET);
+      _multicast = multicast;
+      multicast.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+      multicast.bind(new InetSocketAddress(group.getPort()));
+      multicast.join(group.getAddress(), ni);
+      multicast.configureBlocking(false);
+      multicast.register(_selector, SelectionKey.OP_READ);
+    }
+  }
+
+  /**
+   * Stops streaming and waits for the thread to exit.
+   */
+  public void close() {
+    _scope.cancel();
+    _scope.join();
   }
 
   protected void weightsReady() {
   }
 
+  private float get(int i) {
+    return _h != null ? Half.toFloat(_h[i]) : _w[i];
+  }
+
+  private void set(int i, float v) {
+    if( _h != null )
+      _h[i] = Half.round(v, _seed = Half.next(_seed));
+    else
+      _w[i] = v;
+  }
+
+  private float value(int i) {
+    return _h != null ? Half.toFloat(_inShorts.get(HEADER * 2 + i)) : _inFloats.get(HEADER + i);
+  }
+
+  /**
+   * Writes a value to the packet, returns it as sent.
+   */
+  private float value(int i, float v) {
+    if( _h != null ) {
+      short h = Half.round(v);
+      _shorts.put(HEADER * 2 + i, h);
+      return Half.toFloat(h);
+    }
+    _floats.put(HEADER + i, v);
+    return v;
+  }
+
+  /**
+   * Scans next block for its priority, then sends the most changed one.
+   */
+  final void schedule() throws IOException {
+    int off = _scan * BLOCK;
+    double sum = 0;
+    for( int i = off; i < off + BLOCK; i++ ) {
+      float d = get(i) - _last[i];
+      sum += d * d;
+    }
+    _priorities.set(_scan, sum);
+    if( ++_scan == _blocks ) {
+      _scan = 0;
+      _cycles++;
+      cycle();
+    }
+    int block;
+    if( _slots++ % ROUND_ROBIN == 0 ) {
+      block = _robin;
+      _robin = (_robin + 1) % _blocks;
+      _priorities.set(block, 0);
+    } else
+      block = _priorities.poll();
+    if( block >= 0 )
+      send(block);
+  }
+
   final int master(int block) {
     return block & _mask;
   }
 
+  /**
+   * Sends values of a block if this node is its master, deltas otherwise. Sent deltas are folded
+   * into _last, so they are only sent once the master has sent the block, i.e. is bound. Until
+   * then they stay pending. Deltas in packets lost later are not resent, as with any UDP loss.
+   * Unchanged blocks are skipped, so that the streamer can wait when weights do not change.
+   */
   final void send(int block) throws IOException {
+    if( _local != master(block) && !_receivedBlocks.get(block) )
+      return;
     int off = block * BLOCK;
     _buffer.putInt(0, block);
     if( _local == master(block) ) {
+      long now = System.currentTimeMillis();
+      if( !changed(block) && now - _sentAt[block] < RESEND_MS )
+        return;
+      _sentAt[block] = now;
+      // Masters keep what they sent, for priorities
       for( int i = 0; i < BLOCK; i++ )
-        _floats.put(HEADER + i, _w[off + i]);
-      // TODO multi-cast?
-      for( int i = 0; i < _nodes.length; i++ )
-        if( i != _local )
-          send(_nodes[i]);
-    } else {
+        _last[off + i] = value(i, get(off + i));
+      if( group != null )
+        send(group);
+      else if( fanout > 0 )
+        children(block, _buffer);
+      else {
+        for( int i = 0; i < _nodes.length; i++ )
+          if( i != _local )
+            send(_nodes[i]);
+      }
+    } else if( density != 0 )
+      gather(block);
+    else if( codec != null )
+      encode(block);
+    else if( changed(block) ) {
       for( int i = 0; i < BLOCK; i++ ) {
-        float d = _w[off + i] - _last[off + i];
-        _floats.put(HEADER + i, d);
-        _last[off + i] = _w[off + i];
+        float w = get(off + i);
+        float sent = value(i, w - _last[off + i]);
+        // Rounding error of 16-bit deltas is sent with the next one
+        _last[off + i] = _h != null ? _last[off + i] + sent : w;
       }
       send(_nodes[master(block)]);
     }
   }
 
+  /**
+   * True if a weight of the block differs from what was last sent or received.
+   */
+  final boolean changed(int block) {
+    for( int i = block * BLOCK; i < (block + 1) * BLOCK; i++ )
+      if( get(i) != _last[i] )
+        return true;
+    return false;
+  }
+
+  /**
+   * Sends a packet of the block's master to the children of this node in its tree.
+   */
+  final void children(int block, ByteBuffer b) throws IOException {
+    int m = master(block), rank = (_local - m) & _mask;
+    for( int c = rank * fanout + 1; c <= rank * fanout + fanout && c < _nodes.length; c++ )
+      send(b, _nodes[(m + c) & _mask]);
+  }
+
+  /**
+   * Sends queued packets down the tree. Not called while receiving, as sends can wait on them.
+   */
+  final void forward() throws IOException {
+    ByteBuffer b;
+    while( (b = _forwards.poll()) != null ) {
+      children(b.getInt(0), b);
+      _pool.add(b);
+      _forwarded++;
+    }
+  }
+
+  /**
+   * Adds deltas of a block above threshold to the sparse packet of its master.
+   */
+  final void gather(int block) throws IOException {
+    int m = master(block), max = (_sparse[m].capacity() - HEADER * 4) / 8;
+    ByteBuffer b = _sparse[m];
+    float t = _threshold;
+    for( int i = block * BLOCK; i < (block + 1) * BLOCK; i++ ) {
+      float d = get(i) - _last[i];
+      float a = Math.abs(d);
+      _sumAbs += a;
+      if( a > t ) {
+        int n = _counts[m];
+        b.putInt(HEADER * 4 + n * 8, i);
+        b.putFloat(HEADER * 4 + n * 8 + 4, d);
+        _last[i] += d;
+        _sentValues++;
+        if( ++_counts[m] == max )
+          flush(m);
+      }
+    }
+    _scanned += BLOCK;
+  }
+
+  /**
+   * Adds coded deltas of a block to the packet of its master, sent once full.
+   */
+  final void encode(int block) throws IOException {
+    int m = master(block), off = block * BLOCK, entry = HEADER * 4 + codec.bytes(BLOCK);
+    if( !changed(block) )
+      return;
+    long hash = 1;
+    for( int i = off; i < off + BLOCK; i++ )
+      hash = (hash ^ Float.floatToRawIntBits(get(i))) * 0x9E3779B97F4A7C15L;
+    // Weights did not change since last encoded, residuals wait for next changes
+    if( hash == _encoded[block] )
+      return;
+    _encoded[block] = hash;
+    ByteBuffer b = _sparse[m];
+    for( int i = 0; i < BLOCK; i++ )
+      _deltas[i] = get(off + i) - _last[off + i];
+    b.putInt(_counts[m] * entry, block);
+    codec.encode(_deltas, BLOCK, b, _counts[m] * entry + HEADER * 4);
+    // Error feedback, what the codec lost is sent with next deltas
+    for( int i = 0; i < BLOCK; i++ )
+      _last[off + i] += _deltas[i];
+    if( ++_counts[m] == b.capacity() / entry )
+      flush(m);
+  }
+
+  /**
+   * Sparse packets have a negative header, minus their number of pairs. Coded ones start with the
+   * index of their first block.
+   */
+  final void flush(int m) throws IOException {
+    ByteBuffer b = _sparse[m];
+    if( density != 0 ) {
+      b.putInt(0, -_counts[m]);
+      b.limit(HEADER * 4 + _counts[m] * 8);
+    } else
+      b.limit(_counts[m] * (HEADER * 4 + codec.bytes(BLOCK)));
+    send(b, _nodes[m]);
+    b.limit(b.capacity());
+    b.position(0);
+    _counts[m] = 0;
+  }
+
+  /**
+   * Flushes sparse packets, and adapts threshold to sent fraction.
+   */
+  final void cycle() throws IOException {
+    // Nothing changed enough to send, wait for packets instead of spinning
+    if( _sent == _cycleSent ) {
+      select(0, _idle);
+      _idle = Math.min(_idle * 2, IDLE_MS);
+    } else
+      _idle = 1;
+    _cycleSent = _sent;
+    for( int m = 0; m < _counts.length; m++ )
+      if( _counts[m] > 0 )
+        flush(m);
+    if( density == 0 )
+      return;
+    if( _threshold == 0 )
+      _threshold = _scanned == 0 ? 0 : (float) (_sumAbs / _scanned);
+    else {
+      double ratio = _sentValues / (density * (double) _scanned);
+      _threshold *= (float) Math.min(2, Math.max(.5, Math.sqrt(ratio)));
+    }
+    _sumAbs = 0;
+    _scanned = _sentValues = 0;
+  }
+
   final void send(SocketAddress node) throws IOException {
-    assert _buffer.position() == 0;
-    int sent = _channel.send(_buffer, node);
-    if( sent > 0 ) {
-      assert _buffer.position() == _buffer.capacity() : _buffer.position();
-      _buffer.position(0);
-      _sent++;
+    send(_buffer, node);
+  }
+
+  /**
+   * Paces, then sends the packet. If the socket buffer is full, waits until writable and retries,
+   * receiving meanwhile, so that deltas already folded into _last are not lost.
+   */
+  final void send(ByteBuffer buffer, SocketAddress node) throws IOException {
+    assert buffer.position() == 0;
+    pace(buffer.limit());
+    while( write(buffer, node) == 0 ) {
+      if( Thread.currentThread().isInterrupted() )
+        return;
+      _blocked++;
+      select(SelectionKey.OP_WRITE, 0);
+    }
+    assert buffer.position() == buffer.limit() : buffer.position();
+    buffer.position(0);
+    _sent++;
+  }
+
+  /**
+   * Returns 0 if the socket buffer is full, c.f. DatagramChannel.send.
+   */
+  int write(ByteBuffer buffer, SocketAddress node) throws IOException {
+    return _channel.send(buffer, node);
+  }
+
+  /**
+   * Takes bytes from the token bucket, waiting for it to refill if needed.
+   */
+  final void pace(int bytes) throws IOException {
+    if( bandwidth == 0 )
+      return;
+    double max = Math.max(BURST * PACKET, bandwidth / 100.0);
+    for( ;; ) {
+      long now = System.nanoTime();
+      _tokens = Math.min(max, _tokens + (now - _refilled) * 1e-9 * bandwidth);
+      _refilled = now;
+      if( _tokens >= bytes || Thread.currentThread().isInterrupted() )
+        break;
+      select(0, (long) Math.ceil((bytes - _tokens) * 1e3 / bandwidth));
+    }
+    _tokens -= bytes;
+  }
+
+  /**
+   * Waits for incoming packets, and given ops, up to timeout ms or forever if 0. Then drains
+   * received packets.
+   */
+  final void select(int ops, long timeout) throws IOException {
+    _key.interestOps(SelectionKey.OP_READ | ops);
+    _selector.select(timeout);
+    _selector.selectedKeys().clear();
+    _key.interestOps(SelectionKey.OP_READ);
+    drain();
+  }
+
+  final void drain() throws IOException {
+    while( receive(_channel) ) {
     }
+    if( _multicast != null )
+      while( receive(_multicast) ) {
+      }
   }
 
-  final void receive() throws IOException {
-    assert _buffer.position() == 0;
-    SocketAddress src = _channel.receive(_buffer);
+  /**
+   * Returns false if no packet was available.
+   */
+  final boolean receive(DatagramChannel channel) throws IOException {
+    assert _in.position() == 0;
+    SocketAddress src = channel.receive(_in);
     if( src != null ) {
-      assert _buffer.position() == _buffer.capacity();
-      _buffer.position(0);
-      int block = _buffer.getInt(0);
+      int length = _in.position();
+      _in.position(0);
+      int block = _in.getInt(0);
+      // Group only carries values from masters, including this node's own
+      if( channel == _multicast && (block < 0 || block >= _blocks || _local == master(block)) )
+        return true;
       int off = block * BLOCK;
-      if( _local == master(block) ) {
+      if( block < 0 ) {
+        assert length == HEADER * 4 - block * 8 : length;
+        for( int k = 0; k < -block; k++ ) {
+          int i = _in.getInt(HEADER * 4 + k * 8);
+          set(i, get(i) + _in.getFloat(HEADER * 4 + k * 8 + 4));
+        }
+      } else if( _local == master(block) && codec != null ) {
+        int entry = HEADER * 4 + codec.bytes(BLOCK);
+        assert length % entry == 0 : length;
+        for( int at = 0; at < length; at += entry ) {
+          off = _in.getInt(at) * BLOCK;
+          codec.decode(_in, at + HEADER * 4, _deltas, BLOCK);
+          for( int i = 0; i < BLOCK; i++ )
+            set(off + i, get(off + i) + _deltas[i]);
+        }
+      } else if( _local == master(block) ) {
+        assert length == _buffer.capacity();
         for( int i = 0; i < BLOCK; i++ )
-          _w[off + i] += _floats.get(HEADER + i);
+          set(off + i, get(off + i) + value(i));
       } else {
+        assert length == _buffer.capacity();
+        if( fanout > 0 && group == null )
+          queue(length);
         for( int i = 0; i < BLOCK; i++ ) {
-          float d = _w[off + i] - _last[off + i];
-          _last[off + i] = _floats.get(HEADER + i);
-          _w[off + i] = _last[off + i] + d;
+          float d = get(off + i) - _last[off + i];
+          _last[off + i] = value(i);
+          set(off + i, _last[off + i] + d);
         }
 
         if( _remainingBlocks > 0 && !_receivedBlocks.get(block) ) {
@@ -149,5 +588,22 @@ public class Streamer {
       }
       _received++;
     }
+    return src != null;
+  }
+
+  private void queue(int length) {
+    if( _forwards.size() == MAX_FORWARDS )
+      return;
+    ByteBuffer b = _pool.poll();
+    if( b == null ) {
+      b = ByteBuffer.allocateDirect(_in.capacity());
+      b.order(ByteOrder.nativeOrder());
+    }
+    b.clear();
+    _in.limit(length);
+    b.put(_in);
+    _in.clear();
+    b.flip();
+    _forwards.add(b);
   }
 }
@@ -1,6 +1,51 @@
-#include <iostream>
+// Native Hogwild trainer, c.f. Trainer.Compiled. Network.h is generated for each topology, with
+// layer sizes, activations and hyperparameters as constants, and defines State, fprop and bprop.
 
-static inline void run(void *buffer, long long offset, long long steps) {
-    std::cout << "Processing in C++... " << offset << " " << %cc% << " " << steps << std::endl;
-    // ...
+#include <math.h>
+#include <stdlib.h>
+#include <stdint.h>
+
+// Slots of the progress array are 16 longs apart, first one is the stop flag
+#define SLOT 16
+#define REFRESH 64
+
+static inline uint32_t next(uint32_t *x) {
+  *x ^= *x << 13;
+  *x ^= *x >> 17;
+  *x ^= *x << 5;
+  return *x;
+}
+
+static inline float sign(float v) {
+  return (float) ((v > 0) - (v < 0));
+}
+
+#include "Network.h"
+
+static inline void run(long long data, float *w, long long begin, long long end, long long offset,
+    long long steps, long long *progress, int thread, int threads) {
+  State *s = (State*) calloc(1, sizeof(State));
+  s->rand = (uint32_t) (thread * 0x9E3779B9u) | 1;
+  volatile long long *slots = progress;
+  long long pos = offset;
+  float r[LAYERS];
+  long long k = 0;
+  for( ; steps == 0 || k < steps; k++ ) {
+    if( k % REFRESH == 0 ) {
+      slots[(thread + 1) * SLOT] = k;
+      if( slots[0] )
+        break;
+      long long n = 0;
+      for( int t = 0; t < threads; t++ )
+        n += slots[(t + 1) * SLOT];
+      schedule(r, n);
+    }
+    const float *row = (const float*) ((const char*) data + pos * ROW * 4);
+    input(s, row);
+    fprop(s, w);
+    bprop(s, w, r, (int) row[INPUTS]);
+    pos = pos >= end - 1 ? begin : pos + 1;
+  }
+  slots[(thread + 1) * SLOT] = k;
+  free(s);
 }
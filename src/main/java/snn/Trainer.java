@@ -1,12 +1,16 @@
 package snn;
 
 import java.io.*;
-import java.nio.Buffer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
 import java.util.Arrays;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
-import java.util.concurrent.atomic.AtomicLong;
 
 import snn.Layer.Input;
 import snn.Layer.Training;
@@ -18,6 +22,9 @@ import com.jogamp.opencl.*;
 import com.jogamp.opencl.CLMemory.Mem;
 
 public abstract class Trainer {
+  // Owns threads of the trainer, c.f. Tasks
+  final Tasks.Scope _scope = new Tasks.Scope(getClass().getSimpleName());
+
   public Trainer() {
   }
 
@@ -33,9 +40,25 @@ public abstract class Trainer {
 
   public static class Base extends Trainer {
     final Layer[] _ls;
+    final int _batch;
+
+    // Steps between reads of progress for learning schedules, which can be shared by threads
+    int _refresh = 1;
+    int _steps;
 
     public Base(Layer[] ls) {
+      this(ls, 1);
+    }
+
+    /**
+     * Batch size 1 runs the per-sample path, otherwise samples go through layers as tiles.
+     */
+    public Base(Layer[] ls, int batch) {
       _ls = ls;
+      _batch = batch;
+      if( batch > 1 )
+        for( int i = 0; i < ls.length; i++ )
+          ls[i].batch(batch);
     }
 
     @Override
@@ -53,11 +76,48 @@ public abstract class Trainer {
       throw new UnsupportedOperationException();
     }
 
+    /**
+     * Trains on the next _batch samples, and moves input past them.
+     */
     final void step() {
-      fprop();
+      if( _steps++ % _refresh == 0 )
+        refresh();
+      if( _batch == 1 ) {
+        fprop();
+        for( int i = 1; i < _ls.length - 1; i++ )
+          Arrays.fill(_ls[i]._e, 0);
+        bprop();
+        ((Input) _ls[0]).move();
+      } else
+        step(_batch);
+    }
+
+    final void step(int n) {
+      Input input = (Input) _ls[0];
+      for( int r = 0; r < n; r++ ) {
+        input._rows[r] = input._pos;
+        input.row(r);
+        input.fprop(true);
+        input.move();
+      }
+      long next = input._pos;
+      for( int i = 1; i < _ls.length; i++ )
+        _ls[i].fprop(n, true);
       for( int i = 1; i < _ls.length - 1; i++ )
-        Arrays.fill(_ls[i]._e, 0);
-      bprop();
+        for( int r = 0; r < n; r++ )
+          Arrays.fill(_ls[i]._es[r], 0);
+      for( int i = _ls.length - 1; i > 0; i-- )
+        _ls[i].bprop(n);
+      input._pos = next;
+    }
+
+    /**
+     * Caches learning rate and momentum in layers, so that per-sample code does not read progress.
+     */
+    final void refresh() {
+      long processed = _ls[_ls.length - 1]._training.processed();
+      for( int i = 1; i < _ls.length; i++ )
+        _ls[i].schedule(processed);
     }
 
     final void fprop() {
@@ -67,16 +127,19 @@ public abstract class Trainer {
 
     final void bprop() {
       for( int i = _ls.length - 1; i > 0; i-- )
-        _ls[i].bprop();
+        _ls[i].backward();
     }
   }
 
   public static class SingleThreaded extends Base {
     long _processed, _limit;
-    Thread _thread;
 
     public SingleThreaded(Layer[] ls, double epochs) {
-      super(ls);
+      this(ls, epochs, 1);
+    }
+
+    public SingleThreaded(Layer[] ls, double epochs, int batch) {
+      super(ls, batch);
       _limit = (long) (epochs * ((Input) ls[0])._len);
     }
 
@@ -95,10 +158,10 @@ public abstract class Trainer {
       for( int i = 0; i < _ls.length; i++ )
         _ls[i]._training = training;
 
-      Input input = (Input) _ls[0];
-      for( ; _limit == 0 || _processed < _limit; _processed++ ) {
+      for( ; _limit == 0 || _processed < _limit; _processed += _batch ) {
+        if( Thread.currentThread().isInterrupted() )
+          break;
         step();
-        input.move();
       }
     }
 
@@ -109,27 +172,26 @@ public abstract class Trainer {
 
     @Override
     public void start() {
-      _thread = new Thread() {
+      _scope.compute("Trainer", new Runnable() {
         @Override
         public void run() {
           SingleThreaded.this.run();
         }
-      };
-      _thread.start();
+      });
     }
 
     @Override
     public void join() {
-      try {
-        _thread.join();
-      } catch( InterruptedException e ) {
-        throw new RuntimeException(e);
-      }
+      _scope.join();
     }
   }
 
+  // Steps between refreshes of learning schedules, for multi-threaded trainers
+  static final int REFRESH = 64;
+
   static int cores() {
-    // TODO - 1 to dedicate one to streaming is distributed case
+    // TODO - 1 to dedicate one to streaming in distributed case, Streamer only waits when weights
+    // do not change, i.e. not while training
     return Runtime.getRuntime().availableProcessors();
   }
 
@@ -138,18 +200,23 @@ public abstract class Trainer {
    */
   public static class Threaded extends Trainer {
     final Base[] _trainers;
-    final Thread[] _threads;
+    final Runnable[] _workers;
     final long _stepsPerThread;
     static final CyclicBarrier DONE = new CyclicBarrier(1);
     volatile CyclicBarrier _suspend;
     final CyclicBarrier _resume;
-    final AtomicLong _processed = new AtomicLong();
+    final Counter _processed;
 
     public Threaded(Layer[] ls, double epochs) {
+      this(ls, epochs, 1);
+    }
+
+    public Threaded(Layer[] ls, double epochs, int batch) {
       _trainers = new Base[cores()];
-      _threads = new Thread[_trainers.length];
-      _stepsPerThread = (long) (epochs * ((Input) ls[0])._len / _threads.length);
-      _resume = new CyclicBarrier(_threads.length + 1);
+      _workers = new Runnable[_trainers.length];
+      _stepsPerThread = (long) (epochs * ((Input) ls[0])._len / _workers.length);
+      _resume = new CyclicBarrier(_workers.length + 1);
+      _processed = new Counter(_workers.length);
 
       for( int t = 0; t < _trainers.length; t++ ) {
         Layer[] clones = new Layer[ls.length];
@@ -166,15 +233,17 @@ public abstract class Trainer {
         }
         final Input input = (Input) clones[0];
         input._pos = input._len * t / _trainers.length;
-        _trainers[t] = new Base(clones);
+        _trainers[t] = new Base(clones, batch);
+        _trainers[t]._refresh = REFRESH;
         final Base trainer = _trainers[t];
+        final int slot = t;
 
-        _threads[t] = new Thread("Trainer " + t) {
+        _workers[t] = new Runnable() {
           @Override
           public void run() {
-            for( long i = 0; _stepsPerThread == 0 || i < _stepsPerThread; i++ ) {
+            for( long i = 0; _stepsPerThread == 0 || i < _stepsPerThread; i += trainer._batch ) {
               CyclicBarrier b = _suspend;
-              if( b == DONE )
+              if( b == DONE || Thread.currentThread().isInterrupted() )
                 break;
               if( b != null ) {
                 try {
@@ -185,8 +254,7 @@ public abstract class Trainer {
                 }
               }
               trainer.step();
-              input.move();
-              _processed.incrementAndGet();
+              _processed.add(slot, trainer._batch);
             }
           }
         };
@@ -206,28 +274,25 @@ public abstract class Trainer {
 
     @Override
     public void start() {
-      for( int t = 0; t < _threads.length; t++ )
-        _threads[t].start();
+      for( int t = 0; t < _workers.length; t++ )
+        _scope.compute("Trainer " + t, _workers[t]);
     }
 
     @Override
     public void join() {
-      for( int i = 0; i < _threads.length; i++ ) {
-        try {
-          _threads[i].join();
-        } catch( InterruptedException e ) {
-          throw new RuntimeException(e);
-        }
-      }
+      _scope.join();
     }
 
     public void cancel() {
       _suspend = DONE;
     }
 
-    void suspend() {
+    /**
+     * Waits for all workers to pause between steps, e.g. to score weights. Then call resume().
+     */
+    public void suspend() {
       try {
-        _suspend = new CyclicBarrier(_threads.length + 1);
+        _suspend = new CyclicBarrier(_workers.length + 1);
         _suspend.await();
         _suspend = null;
       } catch( Exception e ) {
@@ -235,7 +300,7 @@ public abstract class Trainer {
       }
     }
 
-    void resume() {
+    public void resume() {
       try {
         _resume.await();
       } catch( Exception e ) {
@@ -244,6 +309,838 @@ public abstract class Trainer {
     }
   }
 
+  /**
+   * Number of NUMA nodes, from sysfs on Linux, 1 otherwise.
+   */
+  static int nodes() {
+    try {
+      String online = Utils.readFile(new File("/sys/devices/system/node/online")).trim();
+      String last = online.substring(Math.max(online.lastIndexOf('-'), online.lastIndexOf(',')) + 1);
+      return Integer.parseInt(last) + 1;
+    } catch( Exception e ) {
+      return 1;
+    }
+  }
+
+  /**
+   * Hogwild by groups of threads, one group per NUMA node. Each group trains on a contiguous shard
+   * of the dataset and its own replica of the weights. A merge thread periodically adds the changes
+   * of each replica to the master vector from NeuralNet.init, so updates of all groups add up as if
+   * they trained on one vector, like Streamer deltas. Replicas are then rebased on the master.
+   * Threads only write to their node's replica, and cross-node traffic is limited to merges.<br>
+   * Java cannot pin threads, so replicas rely on first-touch page placement: each one is allocated
+   * and copied by a thread of its group. For strict placement, run one process per node under
+   * 'numactl --cpunodebind=N --membind=N' instead.
+   */
+  public static class Sharded extends Trainer {
+    final Layer[] _ls;
+    final Base[][] _trainers;
+    final Runnable[] _workers;
+    final Runnable _merger;
+    final Tasks.Scope _merging = new Tasks.Scope("Merger");
+    final float[] _master;
+    final float[][] _replicas, _lasts;
+    final CountDownLatch[] _ready;
+    final long _stepsPerThread;
+    final Counter _processed;
+    volatile boolean _done;
+
+    /**
+     * Milliseconds between merges.
+     */
+    public int mergeInterval = 50;
+
+    public Sharded(Layer[] ls, double epochs) {
+      this(ls, epochs, nodes(), cores(), 1);
+    }
+
+    public Sharded(Layer[] ls, double epochs, int nodes, int threads, int batch) {
+      if( ls[ls.length - 1]._w == null )
+        throw new IllegalArgumentException("Sharded trainer needs float weights");
+      _ls = ls;
+      _master = ls[ls.length - 1]._w;
+      nodes = Math.max(1, Math.min(nodes, threads));
+      _trainers = new Base[nodes][];
+      _replicas = new float[nodes][];
+      _lasts = new float[nodes][];
+      _ready = new CountDownLatch[nodes];
+      _workers = new Runnable[threads];
+      _stepsPerThread = (long) (epochs * ((Input) ls[0])._len / threads);
+      _processed = new Counter(threads);
+      long len = ((Input) ls[0])._len;
+
+      int t = 0;
+      for( int n = 0; n < nodes; n++ ) {
+        final int node = n;
+        int count = threads * (n + 1) / nodes - threads * n / nodes;
+        _trainers[n] = new Base[count];
+        _ready[n] = new CountDownLatch(1);
+        long begin = len * n / nodes, end = len * (n + 1) / nodes;
+        for( int k = 0; k < count; k++, t++ ) {
+          Layer[] clones = new Layer[ls.length];
+          for( int y = 0; y < clones.length; y++ )
+            clones[y] = ls[y].clone();
+          for( int y = 0; y < clones.length; y++ ) {
+            clones[y].init(clones, y, 0);
+            clones[y]._training = new Training() {
+              @Override
+              long processed() {
+                return _processed.get();
+              }
+            };
+          }
+          Input input = (Input) clones[0];
+          input._begin = begin;
+          input._end = end;
+          input._pos = begin + (end - begin) * k / count;
+          _trainers[n][k] = new Base(clones, batch);
+          _trainers[n][k]._refresh = REFRESH;
+          final Base trainer = _trainers[n][k];
+          final boolean first = k == 0;
+          final int slot = t;
+
+          _workers[t] = new Runnable() {
+            @Override
+            public void run() {
+              try {
+                if( first ) {
+                  replicate(node);
+                  _ready[node].countDown();
+                } else
+                  _ready[node].await();
+              } catch( InterruptedException e ) {
+                throw new RuntimeException(e);
+              }
+              for( long i = 0; !_done && (_stepsPerThread == 0 || i < _stepsPerThread); i += trainer._batch ) {
+                if( Thread.currentThread().isInterrupted() )
+                  break;
+                trainer.step();
+                _processed.add(slot, trainer._batch);
+              }
+            }
+          };
+        }
+      }
+
+      _merger = new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for( int n = 0; n < _ready.length; n++ )
+              _ready[n].await();
+            while( !_done ) {
+              Thread.sleep(mergeInterval);
+              merge();
+            }
+          } catch( InterruptedException e ) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      Log.write("Started " + threads + " neural network trainers on " + nodes + " nodes");
+    }
+
+    /**
+     * Allocates and fills a node's replica, from one of its threads.
+     */
+    final void replicate(int node) {
+      float[] replica = _master.clone();
+      _replicas[node] = replica;
+      _lasts[node] = _master.clone();
+      for( Base trainer : _trainers[node] )
+        for( Layer layer : trainer._ls )
+          layer._w = replica;
+    }
+
+    /**
+     * Adds changes of each replica since last merge to the master, then rebases replicas on it,
+     * keeping changes made meanwhile. Races with trainers are tolerated as in Hogwild.
+     */
+    final void merge() {
+      for( int n = 0; n < _replicas.length; n++ ) {
+        float[] replica = _replicas[n], last = _lasts[n];
+        for( int i = 0; i < _master.length; i++ ) {
+          float d = replica[i] - last[i];
+          _master[i] += d;
+          last[i] += d;
+        }
+      }
+      for( int n = 0; n < _replicas.length; n++ ) {
+        float[] replica = _replicas[n], last = _lasts[n];
+        for( int i = 0; i < _master.length; i++ ) {
+          float d = replica[i] - last[i];
+          replica[i] = _master[i] + d;
+          last[i] = _master[i];
+        }
+      }
+    }
+
+    @Override
+    public Layer[] layers() {
+      return _ls;
+    }
+
+    @Override
+    public long processed() {
+      return _processed.get();
+    }
+
+    @Override
+    public void start() {
+      _merging.io(_merger);
+      for( int t = 0; t < _workers.length; t++ )
+        _scope.compute("Trainer " + t, _workers[t]);
+    }
+
+    @Override
+    public void join() {
+      _scope.join();
+      _done = true;
+      _merging.join();
+      merge();
+    }
+
+    public void cancel() {
+      _done = true;
+    }
+  }
+
+  /**
+   * Pipeline parallelism across layers. Layers are split in contiguous groups of similar weight
+   * counts, each trained by a dedicated thread, so that a group's weights can stay in its core's
+   * cache. Samples flow through stages in slots, each holding a row of activations and errors per
+   * layer, c.f. Layer.row(). Stages pass slot indexes forward and backward through SPSC rings. As
+   * in Hogwild, a sample can see weights updated between its fprop and bprop.
+   */
+  public static class Pipelined extends Trainer {
+    final Layer[] _ls;
+    final int[] _first;
+    final Runnable[] _workers;
+    final Ring[] _forward, _backward;
+    final long _limit;
+    final Counter _processed = new Counter(1);
+    volatile boolean _done;
+
+    public Pipelined(Layer[] ls, double epochs) {
+      this(ls, epochs, Math.min(cores(), ls.length - 1), 2 * Math.min(cores(), ls.length - 1));
+    }
+
+    /**
+     * Slots is the number of samples in flight, at least stages to keep them all busy.
+     */
+    public Pipelined(Layer[] ls, double epochs, int stages, int slots) {
+      if( stages < 1 || stages > ls.length - 1 )
+        throw new IllegalArgumentException("Stages must be between 1 and number of layers");
+      _ls = ls;
+      _limit = (long) (epochs * ((Input) ls[0])._len);
+      _first = partition(ls, stages);
+      _workers = new Runnable[stages];
+      _forward = new Ring[stages];
+      _backward = new Ring[stages];
+      for( int s = 0; s < stages; s++ ) {
+        _forward[s] = new Ring(slots);
+        _backward[s] = new Ring(slots);
+      }
+
+      // Rows are shared by the layer clones of all stages
+      float[][][] as = new float[ls.length][][], es = new float[ls.length][][];
+      for( int y = 0; y < ls.length; y++ ) {
+        as[y] = new float[slots][ls[y].units];
+        es[y] = y == 0 ? new float[slots][] : new float[slots][ls[y].units];
+      }
+      long[] rows = new long[slots];
+
+      for( int s = 0; s < stages; s++ ) {
+        final Layer[] clones = new Layer[ls.length];
+        for( int y = 0; y < clones.length; y++ )
+          clones[y] = ls[y].clone();
+        for( int y = 0; y < clones.length; y++ ) {
+          clones[y].init(clones, y, 0);
+          clones[y]._as = as[y];
+          clones[y]._es = es[y];
+        }
+        ((Input) clones[0])._rows = rows;
+        final int stage = s;
+        final int slotCount = slots;
+        _workers[s] = new Runnable() {
+          @Override
+          public void run() {
+            stage(stage, clones, slotCount);
+          }
+        };
+      }
+      Log.write("Started " + stages + " pipeline stages");
+    }
+
+    /**
+     * Returns the first layer of each stage, balancing weights.
+     */
+    static int[] partition(Layer[] ls, int stages) {
+      long total = 0;
+      for( int y = 1; y < ls.length; y++ )
+        total += (long) ls[y].units * ls[y - 1].units;
+      int[] first = new int[stages + 1];
+      int y = 1;
+      long sum = 0;
+      for( int s = 0; s < stages; s++ ) {
+        first[s] = y;
+        // Leave at least one layer per remaining stage
+        long target = total * (s + 1) / stages;
+        do {
+          sum += (long) ls[y].units * ls[y - 1].units;
+          y++;
+        } while( y < ls.length - (stages - s - 1) && sum + (long) ls[y].units * ls[y - 1].units / 2 <= target );
+      }
+      first[stages] = ls.length;
+      return first;
+    }
+
+    final void stage(int s, Layer[] ls, int slots) {
+      int last = _workers.length - 1;
+      Input input = (Input) ls[0];
+      int[] free = new int[slots];
+      int freeCount = 0;
+      if( s == 0 )
+        for( int i = slots - 1; i >= 0; i-- )
+          free[freeCount++] = i;
+      long next = input._pos, issued = 0, completed = 0, iterations = 0;
+      while( !_done && !Thread.currentThread().isInterrupted() ) {
+        if( iterations++ % REFRESH == 0 ) {
+          long processed = _processed.get();
+          for( int y = _first[s]; y < _first[s + 1]; y++ )
+            ls[y].schedule(processed);
+        }
+        boolean idle = true;
+
+        // Backward first, as it frees slots
+        int slot = s < last ? _backward[s].poll() : -1;
+        if( slot >= 0 ) {
+          backward(s, ls, slot);
+          idle = false;
+        }
+        if( s == 0 ) {
+          if( freeCount > 0 && (_limit == 0 || issued < _limit) ) {
+            slot = free[--freeCount];
+            // Rows move _pos, so it is restored before moving
+            input._rows[slot] = next;
+            input.row(slot);
+            input.fprop(true);
+            next = input.move();
+            issued++;
+          } else
+            slot = -1;
+        } else
+          slot = _forward[s - 1].poll();
+        if( slot >= 0 ) {
+          forward(s, ls, slot);
+          if( s < last )
+            _forward[s].offer(slot);
+          else
+            backward(s, ls, slot);
+          idle = false;
+        }
+
+        if( s == 0 ) {
+          // Slots are returned to first stage once done
+          while( (slot = _backward[_backward.length - 1].poll()) >= 0 ) {
+            free[freeCount++] = slot;
+            _processed.add(0, 1);
+            if( _limit != 0 && ++completed == _limit )
+              _done = true;
+          }
+        }
+        if( idle )
+          Thread.yield();
+      }
+    }
+
+    private void forward(int s, Layer[] ls, int slot) {
+      for( int y = _first[s] - 1; y < _first[s + 1]; y++ )
+        ls[y].row(slot);
+      for( int y = _first[s]; y < _first[s + 1]; y++ ) {
+        ls[y].fprop(true);
+        if( y < ls.length - 1 )
+          Arrays.fill(ls[y]._e, 0);
+      }
+    }
+
+    private void backward(int s, Layer[] ls, int slot) {
+      ls[0].row(slot);
+      for( int y = _first[s] - 1; y < _first[s + 1]; y++ )
+        ls[y].row(slot);
+      for( int y = _first[s + 1] - 1; y >= _first[s]; y-- ) {
+        ls[y].restore();
+        ls[y].backward();
+      }
+      // Stage 0 hands slots to itself on the last ring
+      _backward[s == 0 ? _backward.length - 1 : s - 1].offer(slot);
+    }
+
+    @Override
+    public Layer[] layers() {
+      return _ls;
+    }
+
+    @Override
+    public long processed() {
+      return _processed.get();
+    }
+
+    @Override
+    public void start() {
+      for( int s = 0; s < _workers.length; s++ )
+        _scope.compute("Stage " + s, _workers[s]);
+    }
+
+    @Override
+    public void join() {
+      _scope.join();
+    }
+
+    public void cancel() {
+      _done = true;
+    }
+  }
+
+  /**
+   * Model parallelism inside layers, combined with Hogwild across teams. Each team of threads
+   * trains on one sample at a time, with units of each layer split across its threads. Threads
+   * share the sample's activations and errors, and meet on a spin barrier after each layer. Output
+   * layers are small and normalize over all units, so the first thread runs their fprop.
+   */
+  public static class Team extends Trainer {
+    final Layer[] _ls;
+    final Runnable[] _workers;
+    final long _stepsPerTeam;
+    final Counter _processed;
+    final boolean[] _stop;
+    volatile boolean _done;
+
+    public Team(Layer[] ls, double epochs, int size) {
+      this(ls, epochs, Math.max(1, cores() / size), size);
+    }
+
+    public Team(Layer[] ls, double epochs, int teams, int size) {
+      for( int y = 1; y < ls.length; y++ )
+        if( ls[y]._sums != null )
+          throw new IllegalArgumentException("Team trainer does not support lazy decay");
+      _ls = ls;
+      _workers = new Runnable[teams * size];
+      _stepsPerTeam = (long) (epochs * ((Input) ls[0])._len / teams);
+      _processed = new Counter(teams);
+      _stop = new boolean[teams];
+
+      for( int team = 0; team < teams; team++ ) {
+        SpinBarrier barrier = new SpinBarrier(size);
+        float[][] as = new float[ls.length][], es = new float[ls.length][];
+        for( int y = 0; y < ls.length; y++ ) {
+          as[y] = new float[ls[y].units];
+          es[y] = y == 0 ? null : new float[ls[y].units];
+        }
+        // Errors of each thread's units, summed by all after a barrier
+        float[][][] errors = new float[size][ls.length][];
+        for( int k = 0; k < size; k++ )
+          for( int y = 2; y < ls.length; y++ )
+            errors[k][y] = new float[ls[y - 1].units];
+
+        for( int k = 0; k < size; k++ ) {
+          Layer[] clones = new Layer[ls.length];
+          for( int y = 0; y < clones.length; y++ )
+            clones[y] = ls[y].clone();
+          for( int y = 0; y < clones.length; y++ ) {
+            clones[y].init(clones, y, 0);
+            clones[y]._a = as[y];
+            clones[y]._e = es[y];
+            if( y > 0 ) {
+              clones[y]._g = new float[clones[y].units];
+              clones[y]._hits = new int[clones[y].units];
+            }
+          }
+          ((Input) clones[0])._pos = ((Input) clones[0])._len * team / teams;
+          _workers[team * size + k] = worker(team, k, size, clones, barrier, errors);
+        }
+      }
+      Log.write("Started " + teams + " teams of " + size + " threads");
+    }
+
+    private Runnable worker(final int team, final int k, final int size, final Layer[] ls, final SpinBarrier barrier,
+        final float[][][] errors) {
+      return new Runnable() {
+        @Override
+        public void run() {
+          Input input = (Input) ls[0];
+          for( long i = 0; _stepsPerTeam == 0 || i < _stepsPerTeam; i++ ) {
+            if( k == 0 ) {
+              _stop[team] = _done || Thread.currentThread().isInterrupted();
+              input.fprop(true);
+            }
+            barrier.await();
+            if( _stop[team] )
+              break;
+            if( i % REFRESH == 0 ) {
+              long processed = _processed.get();
+              for( int y = 1; y < ls.length; y++ )
+                ls[y].schedule(processed);
+            }
+            step(k, size, ls, barrier, errors);
+            input.move();
+            if( k == 0 )
+              _processed.add(team, 1);
+          }
+        }
+      };
+    }
+
+    static void step(int k, int size, Layer[] ls, SpinBarrier barrier, float[][][] errors) {
+      for( int y = 1; y < ls.length; y++ ) {
+        Layer l = ls[y];
+        if( !(l instanceof Layer.Output) )
+          l.fprop(l.units * k / size, l.units * (k + 1) / size, true);
+        else if( k == 0 )
+          l.fprop(true);
+        barrier.await();
+      }
+      for( int y = ls.length - 1; y > 0; y-- ) {
+        Layer l = ls[y];
+        // Gradients are cheap compared to weights, each thread collects all of them
+        Arrays.fill(l._g, 0);
+        Arrays.fill(l._hits, 0);
+        l.bprop();
+        float[] e = errors[k][y];
+        if( e != null )
+          Arrays.fill(e, 0);
+        l.update(l.units * k / size, l.units * (k + 1) / size, e);
+        barrier.await();
+        if( e != null ) {
+          float[] sum = ls[y - 1]._e;
+          int fanIn = ls[y - 1].units;
+          for( int i = fanIn * k / size; i < fanIn * (k + 1) / size; i++ ) {
+            float v = 0;
+            for( int t = 0; t < size; t++ )
+              v += errors[t][y][i];
+            sum[i] = v;
+          }
+          barrier.await();
+        }
+      }
+    }
+
+    @Override
+    public Layer[] layers() {
+      return _ls;
+    }
+
+    @Override
+    public long processed() {
+      return _processed.get();
+    }
+
+    @Override
+    public void start() {
+      for( int t = 0; t < _workers.length; t++ )
+        _scope.compute("Trainer " + t, _workers[t]);
+    }
+
+    @Override
+    public void join() {
+      _scope.join();
+    }
+
+    public void cancel() {
+      _done = true;
+    }
+  }
+
+  /**
+   * Hogwild on Java code generated and compiled at runtime for a topology, e.g. to run without a
+   * native compiler. The generated step has constant trip counts and offsets, and only contains
+   * code for features in use, so the JIT can unroll and vectorize it. Needs a JDK at runtime.
+   */
+  public static class Generated extends Trainer {
+    final Layer[] _ls;
+    final Step[] _steps;
+    final Runnable[] _workers;
+    final long _stepsPerThread;
+    final Counter _processed;
+    volatile boolean _done;
+    URLClassLoader _loader;
+
+    /**
+     * Base class of generated code. Public, as generated classes are in their own class loader.
+     */
+    public static abstract class Step {
+      public int _rand;
+
+      public abstract void schedule(float[] r, long n);
+
+      public abstract void step(float[] w, float[] input, int label, float[] r);
+    }
+
+    public Generated(Layer[] ls, double epochs) {
+      this(ls, epochs, cores());
+    }
+
+    public Generated(Layer[] ls, double epochs, int threads) {
+      _ls = ls;
+      check(ls, "Generated");
+      _steps = new Step[threads];
+      _workers = new Runnable[threads];
+      _stepsPerThread = (long) (epochs * ((Input) ls[0])._len / threads);
+      _processed = new Counter(threads);
+      Class<?> c = compile();
+      for( int t = 0; t < threads; t++ ) {
+        try {
+          _steps[t] = (Step) c.getConstructor().newInstance();
+        } catch( Exception e ) {
+          throw new RuntimeException(e);
+        }
+        _steps[t]._rand = (t + 1) * 0x9E3779B9 | 1;
+        final Layer[] clones = new Layer[ls.length];
+        for( int y = 0; y < clones.length; y++ )
+          clones[y] = ls[y].clone();
+        for( int y = 0; y < clones.length; y++ )
+          clones[y].init(clones, y, 0);
+        final Input input = (Input) clones[0];
+        input._pos = input._len * t / threads;
+        final Layer.Softmax output = (Layer.Softmax) clones[clones.length - 1];
+        final Step step = _steps[t];
+        final int slot = t;
+        _workers[t] = new Runnable() {
+          @Override
+          public void run() {
+            float[] w = _ls[_ls.length - 1]._w, r = new float[_ls.length];
+            for( long i = 0; !_done && (_stepsPerThread == 0 || i < _stepsPerThread); i++ ) {
+              if( Thread.currentThread().isInterrupted() )
+                break;
+              if( i % REFRESH == 0 )
+                step.schedule(r, _processed.get());
+              input.fprop(true);
+              step.step(w, input._a, output.target(), r);
+              input.move();
+              _processed.add(slot, 1);
+            }
+          }
+        };
+      }
+    }
+
+    /**
+     * Compiles and loads the step class. Files are deleted once loaded, the loader is closed on join
+     * or cancel.
+     */
+    private Class<?> compile() {
+      String name = "Step" + Integer.toHexString(System.identityHashCode(this));
+      String source = generate(name);
+      File dir = null;
+      try {
+        dir = File.createTempFile("snn", "");
+        dir.delete();
+        dir.mkdirs();
+        File file = new File(dir, name + ".java");
+        FileWriter w = new FileWriter(file);
+        try {
+          w.write(source);
+        } finally {
+          Utils.close(w);
+        }
+        String cp = System.getProperty("java.class.path");
+        cp += File.pathSeparator + new File(Trainer.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        javax.tools.JavaCompiler compiler = javax.tools.ToolProvider.getSystemJavaCompiler();
+        if( compiler == null )
+          throw new IllegalStateException("Generated trainer needs a JDK");
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        String[] args = new String[] { "-nowarn", "-cp", cp, "-d", dir.getPath(), file.getPath() };
+        if( compiler.run(null, null, err, args) != 0 )
+          throw new IllegalStateException(err.toString());
+        _loader = new URLClassLoader(new URL[] { dir.toURI().toURL() }, Trainer.class.getClassLoader());
+        return _loader.loadClass(name);
+      } catch( Exception e ) {
+        Utils.close(_loader);
+        throw new RuntimeException(e);
+      } finally {
+        if( dir != null ) {
+          File[] files = dir.listFiles();
+          for( int i = 0; files != null && i < files.length; i++ )
+            files[i].delete();
+          dir.delete();
+        }
+      }
+    }
+
+    /**
+     * Java version of Compiled.generate, same structure.
+     */
+    final String generate(String name) {
+      Layer[] ls = _ls;
+      int last = ls.length - 1;
+      StringBuilder sb = new StringBuilder();
+      sb.append("// Generated by Trainer.Generated\n");
+      sb.append("public final class " + name + " extends snn.Trainer.Generated.Step {\n");
+      for( int y = 1; y < ls.length; y++ )
+        sb.append("  final float[] a" + y + " = new float[" + ls[y].units + "], e" + y + " = new float[" + ls[y].units + "];\n");
+      sb.append("\n");
+
+      sb.append("  @Override\n");
+      sb.append("  public void schedule(float[] r, long n) {\n");
+      for( int y = 1; y < ls.length; y++ ) {
+        Layer l = ls[y];
+        String m = f(l.momentumStart);
+        if( l.momentumRamp > 0 ) {
+          m = "(n >= " + l.momentumRamp + "L ? " + f(l.momentumStable) + " : " + f(l.momentumStart) + " + ";
+          m += f(l.momentumStable - l.momentumStart) + " * n / " + l.momentumRamp + "L)";
+        }
+        sb.append("    r[" + y + "] = " + f(l.rate) + " / (1 + " + f(l.rateAnnealing) + " * n) * (1 - " + m + ");\n");
+      }
+      sb.append("  }\n\n");
+
+      sb.append("  @Override\n");
+      sb.append("  public void step(float[] w, float[] a0, int label, float[] r) {\n");
+      for( int y = 1; y < ls.length; y++ ) {
+        Layer l = ls[y];
+        int in = ls[y - 1].units;
+        sb.append("    // " + l.getClass().getSimpleName() + "\n");
+        sb.append("    for( int o = 0; o < " + l.units + "; o++ ) {\n");
+        if( l instanceof Layer.RectifierDropout ) {
+          sb.append("      _rand ^= _rand << 13;\n");
+          sb.append("      _rand ^= _rand >>> 17;\n");
+          sb.append("      _rand ^= _rand << 5;\n");
+          sb.append("      if( (_rand & 1) != 0 ) {\n");
+          sb.append("        a" + y + "[o] = 0;\n");
+          sb.append("        continue;\n");
+          sb.append("      }\n");
+        }
+        sb.append("      int x = " + l._wi + " + o * " + in + ";\n");
+        sb.append("      float sum = w[" + l._bi + " + o];\n");
+        sb.append("      for( int i = 0; i < " + in + "; i++ )\n");
+        sb.append("        sum += w[x + i] * a" + (y - 1) + "[i];\n");
+        if( l instanceof Layer.Tanh )
+          sb.append("      a" + y + "[o] = (float) Math.tanh(sum);\n");
+        else if( l instanceof Layer.Rectifier )
+          sb.append("      a" + y + "[o] = sum > 0 ? sum : 0;\n");
+        else
+          sb.append("      a" + y + "[o] = sum;\n");
+        sb.append("    }\n");
+      }
+      String out = "a" + last;
+      sb.append("    float max = Float.NEGATIVE_INFINITY, scale = 0;\n");
+      sb.append("    for( int o = 0; o < " + ls[last].units + "; o++ )\n");
+      sb.append("      max = Math.max(max, " + out + "[o]);\n");
+      sb.append("    for( int o = 0; o < " + ls[last].units + "; o++ ) {\n");
+      sb.append("      " + out + "[o] = (float) Math.exp(" + out + "[o] - max);\n");
+      sb.append("      scale += " + out + "[o];\n");
+      sb.append("    }\n");
+      sb.append("    for( int o = 0; o < " + ls[last].units + "; o++ )\n");
+      sb.append("      " + out + "[o] /= scale;\n\n");
+
+      for( int y = 1; y < last; y++ )
+        sb.append("    java.util.Arrays.fill(e" + y + ", 0);\n");
+      for( int y = last; y > 0; y-- ) {
+        Layer l = ls[y];
+        int in = ls[y - 1].units;
+        String a = "a" + y + "[u]";
+        sb.append("    // " + l.getClass().getSimpleName() + "\n");
+        sb.append("    for( int u = 0; u < " + l.units + "; u++ ) {\n");
+        if( l instanceof Layer.Softmax ) {
+          sb.append("      float g = (u == label ? 1 : 0) - " + a + ";\n");
+          if( ((Layer.Softmax) l).loss == Layer.Output.Loss.MeanSquare )
+            sb.append("      g *= (1 - " + a + ") * " + a + ";\n");
+        } else if( l instanceof Layer.Tanh )
+          sb.append("      float g = e" + y + "[u] * (1 - " + a + " * " + a + ");\n");
+        else {
+          sb.append("      if( " + a + " <= 0 )\n");
+          sb.append("        continue;\n");
+          sb.append("      float g = e" + y + "[u];\n");
+        }
+        sb.append("      int x = " + l._wi + " + u * " + in + ";\n");
+        if( y > 1 ) {
+          sb.append("      for( int i = 0; i < " + in + "; i++ )\n");
+          sb.append("        e" + (y - 1) + "[i] += g * w[x + i];\n");
+        }
+        sb.append("      float rg = r[" + y + "] * g, r2 = 0;\n");
+        if( l.l2 != 0 )
+          sb.append("      float k = 1 - r[" + y + "] * " + f(l.l2) + ";\n");
+        if( l.l1 != 0 )
+          sb.append("      float rl1 = r[" + y + "] * " + f(l.l1) + ";\n");
+        sb.append("      for( int i = 0; i < " + in + "; i++ ) {\n");
+        String v = l.l2 != 0 ? "w[x + i] * k" : "w[x + i]";
+        v += " + rg * a" + (y - 1) + "[i]";
+        if( l.l1 != 0 )
+          v += " - rl1 * Math.signum(w[x + i])";
+        sb.append("        float v = " + v + ";\n");
+        sb.append("        w[x + i] = v;\n");
+        sb.append("        r2 += v * v;\n");
+        sb.append("      }\n");
+        sb.append("      if( r2 > 15 ) {\n");
+        sb.append("        float s = (float) Math.sqrt(15 / r2);\n");
+        sb.append("        for( int i = 0; i < " + in + "; i++ )\n");
+        sb.append("          w[x + i] *= s;\n");
+        sb.append("      }\n");
+        sb.append("      w[" + l._bi + " + u] += r[" + y + "] * g;\n");
+        sb.append("    }\n");
+      }
+      sb.append("  }\n");
+      sb.append("}\n");
+      return sb.toString();
+    }
+
+    private static String f(float f) {
+      if( Float.isNaN(f) )
+        return "Float.NaN";
+      if( Float.isInfinite(f) )
+        return f > 0 ? "Float.POSITIVE_INFINITY" : "Float.NEGATIVE_INFINITY";
+      return Float.toString(f) + "f";
+    }
+
+    @Override
+    public Layer[] layers() {
+      return _ls;
+    }
+
+    @Override
+    public long processed() {
+      return _processed.get();
+    }
+
+    @Override
+    public void start() {
+      for( int t = 0; t < _workers.length; t++ )
+        _scope.compute("Trainer " + t, _workers[t]);
+    }
+
+    @Override
+    public void join() {
+      _scope.join();
+      Utils.close(_loader);
+    }
+
+    /**
+     * Stops threads. Loaded code keeps running until they exit, closing only releases the loader.
+     */
+    public void cancel() {
+      _done = true;
+      Utils.close(_loader);
+    }
+  }
+
+  /**
+   * Generated trainers support float, row-major weights, with Tanh and Rectifier layers followed
+   * by a Softmax.
+   */
+  static void check(Layer[] ls, String trainer) {
+    if( ls[ls.length - 1]._w == null )
+      throw new IllegalArgumentException(trainer + " trainer needs float weights");
+    for( int y = 1; y < ls.length; y++ ) {
+      if( ls[y].tile != 0 )
+        throw new IllegalArgumentException(trainer + " trainer needs row-major layers");
+      if( ls[y].hasMomentum() || ls[y].optimizer != Layer.Optimizer.SGD )
+        throw new IllegalArgumentException(trainer + " trainer only supports SGD without momentum");
+      if( !(ls[y] instanceof Layer.Tanh || ls[y] instanceof Layer.Rectifier || ls[y] instanceof Layer.Softmax) )
+        throw new IllegalArgumentException("Unsupported layer " + ls[y].getClass().getName());
+      if( (y == ls.length - 1) != (ls[y] instanceof Layer.Softmax) )
+        throw new IllegalArgumentException("Last layer must be, and only be, a softmax");
+    }
+  }
+
   /**
    * GPU based trainer. Not finished
    */
@@ -336,18 +1233,37 @@ public abstract class Trainer {
   }
 
   /**
-   * Generates and invoke C code at runtime, for speed and to share code between GPU/CPU.
+   * Generates and compiles C code at runtime, specialized for a topology. Layer sizes, activations
+   * and hyperparameters are compile-time constants. Threads run Hogwild on a native copy of the
+   * weights, reading samples straight from the mapped file. Rows must hold the inputs followed by
+   * the class index, as floats, c.f. MnistPrepare. Weights are copied back on sync() and join().
    */
   @Platform(include = "Trainer.h")
   public static class Compiled extends Trainer {
     final Layer[] _ls;
-    final Thread[] _threads;
+    final FileMap _data;
+    final Runnable[] _workers;
     final long _stepsPerThread;
+    final FloatBuffer _w;
+    final LongBuffer _progress;
+
+    /**
+     * Fraction of inputs dropped for each sample.
+     */
+    public float inputDropout;
 
-    public Compiled(Layer[] ls, double epochs) {
+    public Compiled(Layer[] ls, double epochs, FileMap data) {
       _ls = ls;
-      _threads = new Thread[cores()];
-      _stepsPerThread = (long) (epochs * ((Input) ls[0])._len / _threads.length);
+      _data = data;
+      _workers = new Runnable[cores()];
+      _stepsPerThread = (long) (epochs * ((Input) ls[0])._len / _workers.length);
+      check(ls, "Compiled");
+      float[] w = ls[ls.length - 1]._w;
+      ByteBuffer buffer = ByteBuffer.allocateDirect(w.length * 4).order(ByteOrder.nativeOrder());
+      _w = buffer.asFloatBuffer();
+      _w.put(w);
+      buffer = ByteBuffer.allocateDirect((_workers.length + 1) * 16 * 8).order(ByteOrder.nativeOrder());
+      _progress = buffer.asLongBuffer();
     }
 
     @Override
@@ -355,7 +1271,151 @@ public abstract class Trainer {
       return _ls;
     }
 
-    static native void run(Buffer buffer, long offset, long steps);
+    static native void run(long data, FloatBuffer w, long begin, long end, long offset, long steps,
+        LongBuffer progress, int thread, int threads);
+
+    @Override
+    public long processed() {
+      long n = 0;
+      for( int t = 0; t < _workers.length; t++ )
+        n += _progress.get((t + 1) * 16);
+      return n;
+    }
+
+    /**
+     * Generates C code for the network, included by Trainer.h.
+     */
+    final String generate() {
+      Layer[] ls = _ls;
+      int last = ls.length - 1;
+      StringBuilder sb = new StringBuilder();
+      sb.append("// Generated by Trainer.Compiled\n\n");
+      sb.append("#define LAYERS " + ls.length + "\n");
+      sb.append("#define INPUTS " + ls[0].units + "\n");
+      sb.append("#define ROW " + (ls[0].units + 1) + "\n\n");
+
+      sb.append("typedef struct {\n");
+      sb.append("  uint32_t rand;\n");
+      sb.append("  float a0[" + ls[0].units + "];\n");
+      for( int y = 1; y < ls.length; y++ )
+        sb.append("  float a" + y + "[" + ls[y].units + "], e" + y + "[" + ls[y].units + "];\n");
+      sb.append("} State;\n\n");
+
+      sb.append("static inline void schedule(float *r, long long n) {\n");
+      for( int y = 1; y < ls.length; y++ ) {
+        Layer l = ls[y];
+        String m = c(l.momentumStart);
+        if( l.momentumRamp > 0 ) {
+          m = "(n >= " + l.momentumRamp + "LL ? " + c(l.momentumStable) + " : " + c(l.momentumStart) + " + ";
+          m += c(l.momentumStable - l.momentumStart) + " * n / " + l.momentumRamp + "LL)";
+        }
+        sb.append("  r[" + y + "] = " + c(l.rate) + " / (1 + " + c(l.rateAnnealing) + " * n) * (1 - " + m + ");\n");
+      }
+      sb.append("}\n\n");
+
+      sb.append("static inline void input(State *s, const float *row) {\n");
+      sb.append("  for( int i = 0; i < INPUTS; i++ )\n");
+      if( inputDropout > 0 ) {
+        int threshold = (int) (inputDropout * 65536);
+        sb.append("    s->a0[i] = (next(&s->rand) & 0xffff) < " + threshold + " ? 0 : row[i];\n");
+      } else
+        sb.append("    s->a0[i] = row[i];\n");
+      sb.append("}\n\n");
+
+      sb.append("static inline void fprop(State *s, const float *w) {\n");
+      for( int y = 1; y < ls.length; y++ ) {
+        Layer l = ls[y];
+        int in = ls[y - 1].units;
+        sb.append("  // " + l.getClass().getSimpleName() + "\n");
+        sb.append("  for( int o = 0; o < " + l.units + "; o++ ) {\n");
+        if( l instanceof Layer.RectifierDropout ) {
+          sb.append("    if( next(&s->rand) & 1 ) {\n");
+          sb.append("      s->a" + y + "[o] = 0;\n");
+          sb.append("      continue;\n");
+          sb.append("    }\n");
+        }
+        sb.append("    const float *x = w + " + l._wi + " + o * " + in + ";\n");
+        sb.append("    float sum = w[" + l._bi + " + o];\n");
+        sb.append("    for( int i = 0; i < " + in + "; i++ )\n");
+        sb.append("      sum += x[i] * s->a" + (y - 1) + "[i];\n");
+        if( l instanceof Layer.Tanh )
+          sb.append("    s->a" + y + "[o] = tanhf(sum);\n");
+        else if( l instanceof Layer.Rectifier )
+          sb.append("    s->a" + y + "[o] = sum > 0 ? sum : 0;\n");
+        else
+          sb.append("    s->a" + y + "[o] = sum;\n");
+        sb.append("  }\n");
+      }
+      int out = ls[last].units;
+      sb.append("  float max = -INFINITY, scale = 0;\n");
+      sb.append("  for( int o = 0; o < " + out + "; o++ )\n");
+      sb.append("    max = fmaxf(max, s->a" + last + "[o]);\n");
+      sb.append("  for( int o = 0; o < " + out + "; o++ ) {\n");
+      sb.append("    s->a" + last + "[o] = expf(s->a" + last + "[o] - max);\n");
+      sb.append("    scale += s->a" + last + "[o];\n");
+      sb.append("  }\n");
+      sb.append("  for( int o = 0; o < " + out + "; o++ )\n");
+      sb.append("    s->a" + last + "[o] /= scale;\n");
+      sb.append("}\n\n");
+
+      sb.append("static inline void bprop(State *s, float *w, const float *r, int label) {\n");
+      for( int y = 1; y < last; y++ ) {
+        sb.append("  for( int o = 0; o < " + ls[y].units + "; o++ )\n");
+        sb.append("    s->e" + y + "[o] = 0;\n");
+      }
+      for( int y = last; y > 0; y-- ) {
+        Layer l = ls[y];
+        int in = ls[y - 1].units;
+        String a = "s->a" + y + "[u]";
+        sb.append("  // " + l.getClass().getSimpleName() + "\n");
+        sb.append("  for( int u = 0; u < " + l.units + "; u++ ) {\n");
+        if( l instanceof Layer.Softmax ) {
+          sb.append("    float g = (u == label ? 1 : 0) - " + a + ";\n");
+          if( ((Layer.Softmax) l).loss == Layer.Output.Loss.MeanSquare )
+            sb.append("    g *= (1 - " + a + ") * " + a + ";\n");
+        } else if( l instanceof Layer.Tanh )
+          sb.append("    float g = s->e" + y + "[u] * (1 - " + a + " * " + a + ");\n");
+        else {
+          sb.append("    if( " + a + " <= 0 )\n");
+          sb.append("      continue;\n");
+          sb.append("    float g = s->e" + y + "[u];\n");
+        }
+        sb.append("    float *x = w + " + l._wi + " + u * " + in + ";\n");
+        if( y > 1 ) {
+          sb.append("    for( int i = 0; i < " + in + "; i++ )\n");
+          sb.append("      s->e" + (y - 1) + "[i] += g * x[i];\n");
+        }
+        sb.append("    float rg = r[" + y + "] * g, k = 1 - r[" + y + "] * " + c(l.l2) + ", r2 = 0;\n");
+        sb.append("    for( int i = 0; i < " + in + "; i++ ) {\n");
+        if( l.l1 != 0 )
+          sb.append("      float v = x[i] * k + rg * s->a" + (y - 1) + "[i] - r[" + y + "] * " + c(l.l1) + " * sign(x[i]);\n");
+        else
+          sb.append("      float v = x[i] * k + rg * s->a" + (y - 1) + "[i];\n");
+        sb.append("      x[i] = v;\n");
+        sb.append("      r2 += v * v;\n");
+        sb.append("    }\n");
+        sb.append("    if( r2 > 15 ) {\n");
+        sb.append("      float f = sqrtf(15 / r2);\n");
+        sb.append("      for( int i = 0; i < " + in + "; i++ )\n");
+        sb.append("        x[i] *= f;\n");
+        sb.append("    }\n");
+        sb.append("    w[" + l._bi + " + u] += r[" + y + "] * g;\n");
+        sb.append("  }\n");
+      }
+      sb.append("}\n");
+      return sb.toString();
+    }
+
+    /**
+     * C literal for a float. Non-finite values use math.h macros, Java's names are not C.
+     */
+    static String c(float f) {
+      if( Float.isNaN(f) )
+        return "NAN";
+      if( Float.isInfinite(f) )
+        return f > 0 ? "INFINITY" : "-INFINITY";
+      return Float.toString(f) + "f";
+    }
 
     @Override
     public void start() {
@@ -368,18 +1428,21 @@ public abstract class Trainer {
 
       try {
         File lib = File.createTempFile("snn", "");
-        builder.outputDirectory(lib.getParentFile().getAbsolutePath());
+        File dir = lib.getParentFile();
+        builder.outputDirectory(dir.getAbsolutePath());
 
         InputStream is = Compiled.class.getClassLoader().getResourceAsStream("snn/Trainer.h");
-        BufferedReader br = new BufferedReader(new InputStreamReader(is));
-        FileWriter w = new FileWriter(new File(lib.getParentFile(), "Kernel.h"));
-        for( ;; ) {
-          String line = br.readLine();
-          if( line == null ) {
-            w.close();
-            break;
-          }
-          w.write(line.replace("%cc%", "20") + '\n');
+        FileOutputStream os = new FileOutputStream(new File(dir, "Trainer.h"));
+        try {
+          Utils.copy(is, os);
+        } finally {
+          Utils.close(is, os);
+        }
+        FileWriter w = new FileWriter(new File(dir, "Network.h"));
+        try {
+          w.write(generate());
+        } finally {
+          Utils.close(w);
         }
 
         File so = builder.generateAndCompile(new Class[] { Compiled.class }, lib.getName());
@@ -388,23 +1451,38 @@ public abstract class Trainer {
         throw new RuntimeException(e);
       }
 
-      for( int t = 0; t < _threads.length; t++ ) {
-        final Input input = (Input) _ls[0];
-        input._pos = input._len * t / _threads.length;
-
-        _threads[t] = new Thread("Trainer " + t) {
+      final long address = _data.address(), len = ((Input) _ls[0])._len;
+      for( int t = 0; t < _workers.length; t++ ) {
+        final int thread = t;
+        final long offset = len * t / _workers.length;
+        _workers[t] = new Runnable() {
           @Override
           public void run() {
-            Compiled.run(null, input._pos, _stepsPerThread);
+            Compiled.run(address, _w, 0, len, offset, _stepsPerThread, _progress, thread, _workers.length);
           }
         };
+        _scope.compute("Trainer " + t, _workers[t]);
       }
-      Log.write("Started " + _threads.length + " neural network trainers");
+      Log.write("Started " + _workers.length + " neural network trainers");
+    }
+
+    /**
+     * Copies native weights back to the Java vector, e.g. for scoring.
+     */
+    public void sync() {
+      FloatBuffer w = _w.duplicate();
+      w.position(0);
+      w.get(_ls[_ls.length - 1]._w);
+    }
+
+    public void cancel() {
+      _progress.put(0, 1);
     }
 
     @Override
     public void join() {
-      throw new RuntimeException("TODO Auto-generated method stub");
+      _scope.join();
+      sync();
     }
   }
 }
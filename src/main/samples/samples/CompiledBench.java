@@ -0,0 +1,56 @@
+package samples;
+
+import snn.*;
+
+/**
+ * Compares throughput of the generated native trainer with Trainer.Threaded, on the same MNIST
+ * network. Please run MnistPrepare first, once, to create datasets.
+ */
+public class CompiledBench {
+  static final int SECONDS = 30;
+
+  public static void main(String[] args) throws Exception {
+    Mnist mnist = new Mnist(null, 0);
+    FileMap train = new FileMap("./data/mnist/train.snn");
+
+    Layer[] ls = net(mnist, train);
+    Trainer.Threaded threaded = new Trainer.Threaded(ls, 0);
+    threaded.start();
+    report("Threaded", threaded, ls);
+    threaded.cancel();
+    threaded.join();
+
+    ls = net(mnist, train);
+    Trainer.Compiled compiled = new Trainer.Compiled(ls, 0, train);
+    compiled.inputDropout = .2f;
+    compiled.start();
+    report("Compiled", compiled, ls);
+    compiled.cancel();
+    compiled.join();
+  }
+
+  /**
+   * MNIST rectifier network without momentum, which the generated trainer does not support.
+   */
+  static Layer[] net(Mnist mnist, FileMap train) {
+    Layer[] ls = mnist.rectif(train);
+    for( int i = 0; i < ls.length; i++ ) {
+      ls[i].momentumStart = 0;
+      ls[i].momentumStable = 0;
+    }
+    NeuralNet.init(ls, true);
+    return ls;
+  }
+
+  static void report(String name, Trainer trainer, Layer[] ls) throws Exception {
+    long start = System.nanoTime();
+    Thread.sleep(SECONDS * 1000);
+    double time = (System.nanoTime() - start) / 1e9;
+    long processed = trainer.processed();
+    if( trainer instanceof Trainer.Compiled )
+      ((Trainer.Compiled) trainer).sync();
+    // Trainers work on clones or native copies, layers can score
+    NeuralNet.Errors e = new Model(ls).eval(ls, 10000, null);
+    System.out.println(name + ": " + (int) (processed / time) + " samples/s, train error " + e);
+  }
+}
@@ -0,0 +1,143 @@
+package samples;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import snn.*;
+import snn.Layer.Input;
+import snn.Layer.Softmax;
+import snn.Layer.Tanh;
+
+/**
+ * Measures training throughput and cache misses for each weight layout, on synthetic MNIST-sized
+ * data. Each layout runs in its own VM under "perf stat", so that hardware counters only cover
+ * that layout. Counts include VM startup and JIT, which are the same for all layouts. Without
+ * perf, only throughput is measured, in this VM.
+ */
+public class LayoutBench {
+  static final int SAMPLES = 10000, PASSES = 4;
+  static final String EVENTS = "cache-references,cache-misses,L1-dcache-load-misses,LLC-load-misses";
+
+  public static void main(String[] args) throws Exception {
+    if( args.length > 0 ) {
+      run(Integer.parseInt(args[0]));
+      return;
+    }
+    int[] tiles = new int[] { 0, 4, 8, 16, 32 };
+    if( !perf() ) {
+      System.out.println("perf not found, measuring throughput only");
+      for( int tile : tiles )
+        run(tile);
+      return;
+    }
+    for( int tile : tiles ) {
+      File stats = File.createTempFile("perf", ".csv");
+      try {
+        ArrayList<String> list = new ArrayList<String>();
+        list.addAll(Arrays.asList("perf", "stat", "-x,", "-o", stats.getPath(), "-e", EVENTS));
+        list.add(System.getProperty("java.home") + "/bin/java");
+        list.add("-cp");
+        list.add(System.getProperty("java.class.path"));
+        list.add(LayoutBench.class.getName());
+        list.add("" + tile);
+        Process process = new ProcessBuilder(list).inheritIO().start();
+        if( process.waitFor() != 0 )
+          throw new RuntimeException("Benchmark failed for tile " + tile);
+        print(tile, stats);
+      } finally {
+        stats.delete();
+      }
+    }
+  }
+
+  static void run(int tile) {
+    for( int pass = 0; pass < PASSES; pass++ ) {
+      Layer[] ls = build(tile);
+      Trainer.SingleThreaded trainer = new Trainer.SingleThreaded(ls, 1);
+      long start = System.nanoTime();
+      trainer.run();
+      double time = (System.nanoTime() - start) / 1e9;
+      if( pass == PASSES - 1 ) // Others are warmup
+        System.out.println("tile " + tile + ": " + (int) (SAMPLES / time) + " samples/s");
+    }
+  }
+
+  static boolean perf() {
+    try {
+      return new ProcessBuilder("perf", "--version").start().waitFor() == 0;
+    } catch( Exception e ) {
+      return false;
+    }
+  }
+
+  /**
+   * Prints counters from perf's CSV output, per trained sample.
+   */
+  static void print(int tile, File stats) throws Exception {
+    BufferedReader in = new BufferedReader(new FileReader(stats));
+    try {
+      String line;
+      while( (line = in.readLine()) != null ) {
+        String[] cells = line.split(",");
+        if( line.startsWith("#") || cells.length < 3 )
+          continue;
+        String count = cells[0];
+        try {
+          count = String.format("%.1f", Long.parseLong(count) / (double) (SAMPLES * PASSES));
+        } catch( NumberFormatException e ) {
+          // e.g. <not supported> on VMs
+        }
+        System.out.println("tile " + tile + ": " + cells[2] + " per sample: " + count);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  static Layer[] build(int tile) {
+    Layer[] ls = new Layer[4];
+    ls[0] = new RandomInput(Mnist.PIXELS + 16);
+    ls[1] = new Tanh(512);
+    ls[2] = new Tanh(512);
+    ls[3] = new RandomSoftmax();
+    for( int i = 0; i < ls.length; i++ ) {
+      ls[i].rate = .001f;
+      ls[i].tile = i < 3 ? tile : 0;
+    }
+    NeuralNet.init(ls, true);
+    return ls;
+  }
+
+  static class RandomInput extends Input {
+    RandomInput(int pixels) {
+      units = pixels;
+      _len = SAMPLES;
+    }
+
+    @Override
+    protected void fprop(boolean training) {
+      // Cheap deterministic values, so that the benchmark measures layers
+      int x = (int) _pos * 0x9E3779B9 | 1;
+      for( int i = 0; i < _a.length; i++ ) {
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        _a[i] = (x & 0xffff) / 65536f;
+      }
+    }
+  }
+
+  static class RandomSoftmax extends Softmax {
+    RandomSoftmax() {
+      units = 10;
+    }
+
+    @Override
+    protected int target() {
+      return (int) (pos() % units);
+    }
+  }
+}
@@ -74,9 +74,11 @@ public class Mnist implements Runnable, Serializable {
     protected void fprop(boolean training) {
       long offset = _pos * ROW;
       _file.get(offset, _a);
-      for( int i = 0; i < _a.length; i++ )
-        if( _rand.nextFloat() < .2f )
-          _a[i] = 0;
+      if( training ) {
+        for( int i = 0; i < _a.length; i++ )
+          if( _rand.nextFloat() < .2f )
+            _a[i] = 0;
+      }
     }
   }
 
@@ -168,7 +170,21 @@ public class Mnist implements Runnable, Serializable {
     }
 
     if( _local == 0 ) {
-      // Monitor training
+      // Monitor training, against snapshots of the weights so that trainers never pause. Scoring
+      // nets read inputs and targets, using same normalization stats as for training.
+      final Snapshot snapshot = new Snapshot(ls);
+      // Engines are built once per snapshot buffer, the quantized ones copy weights on each test
+      final Model[] models = new Model[2];
+      final Quantized[] quantized = new Quantized[2];
+      for( int i = 0; i < models.length; i++ ) {
+        models[i] = new Model(ls, snapshot.view(i));
+        quantized[i] = new Quantized(ls, snapshot.view(i));
+      }
+      final Layer[] train = build(_train), test = build(_test);
+      for( int i = 0; i < ls.length; i++ ) {
+        train[i].init(train, i, 0);
+        test[i].init(test, i, 0);
+      }
       final Timer timer = new Timer();
       final long start = System.nanoTime();
       final AtomicInteger evals = new AtomicInteger(1);
@@ -177,18 +193,14 @@ public class Mnist implements Runnable, Serializable {
         public void run() {
           double time = (System.nanoTime() - start) / 1e9;
           Trainer trainer = _trainer;
-          long processed = trainer == null ? 0 : trainer.processed();
+          Snapshot.View view = snapshot.take(trainer);
+          int buffer = view == snapshot.view(0) ? 0 : 1;
+          long processed = view.processedAfter;
           int ps = (int) (processed / time);
           String text = (int) time + "s, " + processed + " (" + (ps) + "/s) ";
 
-          // Build separate nets for scoring purposes, use same normalization stats as for training
-          Layer[] temp = build(_train);
-          for( int i = 0; i < temp.length; i++ ) {
-            temp[i].init(temp, i, 0);
-            temp[i]._w = w;
-          }
           // Estimate training error on subset of dataset for speed
-          Errors e = NeuralNet.eval(temp, 1000, null);
+          Errors e = models[buffer].evalParallel(train, 1000, null);
           text += "train: " + e;
           text += ", rate: ";
           text += String.format("%.5g", ls[0].rate(processed));
@@ -203,12 +215,9 @@ public class Mnist implements Runnable, Serializable {
           System.out.println(text);
           if( (evals.incrementAndGet() % 16) == 0 ) {
             System.out.println("Computing test error");
-            temp = build(_test);
-            for( int i = 0; i < temp.length; i++ ) {
-              temp[i].init(temp, i, 0);
-              temp[i]._w = w;
-            }
-            e = NeuralNet.eval(temp, 0, null);
+            // Int8 engine, much cheaper than the training layers
+            quantized[buffer].quantize();
+            e = quantized[buffer].evalParallel(test, 0, null);
             System.out.println("Test error: " + e);
           }
         }
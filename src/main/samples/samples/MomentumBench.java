@@ -0,0 +1,86 @@
+package samples;
+
+import snn.*;
+import snn.Layer.Tanh;
+import snn.Layer.Velocity;
+import samples.LayoutBench.RandomInput;
+import samples.LayoutBench.RandomSoftmax;
+
+/**
+ * Compares momentum options on synthetic MNIST-sized data: memory used by velocity buffers, and
+ * training error after each epoch of Hogwild on all cores. Inputs are noisy copies of one pattern
+ * per class, so that the network can learn them and convergence can be compared.
+ */
+public class MomentumBench {
+  static final int EPOCHS = 5;
+
+  public static void main(String[] args) throws Exception {
+    int threads = Runtime.getRuntime().availableProcessors();
+    for( int option = 0; option < 3; option++ ) {
+      Velocity velocity = option == 0 ? null : Velocity.values()[option - 1];
+      Layer[] ls = build(velocity);
+      long weights = 0;
+      for( int i = 1; i < ls.length; i++ )
+        weights += ls[i]._wl + ls[i]._bl;
+      long floats = velocity == null ? 0 : velocity == Velocity.Shared ? weights : weights * (threads + 1);
+      String name = velocity == null ? "none" : velocity.toString();
+      System.out.println(name + ": " + (floats * 4 >> 20) + " MB of velocity for " + threads + " threads");
+      // One trainer for all epochs, so that per-thread velocity carries over like shared one
+      Trainer.Threaded trainer = new Trainer.Threaded(ls, 0);
+      trainer.start();
+      for( int epoch = 0; epoch < EPOCHS; epoch++ ) {
+        long start = System.nanoTime(), first = trainer.processed();
+        while( trainer.processed() < (epoch + 1L) * LayoutBench.SAMPLES )
+          Thread.sleep(1);
+        trainer.suspend();
+        double time = (System.nanoTime() - start) / 1e9;
+        long samples = trainer.processed() - first;
+        NeuralNet.Errors e = NeuralNet.eval(ls, 1000, null);
+        System.out.println("  epoch " + epoch + ": " + e + ", " + (int) (samples / time) + " samples/s");
+        trainer.resume();
+      }
+      trainer.cancel();
+      trainer.join();
+    }
+  }
+
+  static Layer[] build(Velocity velocity) {
+    Layer[] ls = new Layer[4];
+    ls[0] = new PatternInput(Mnist.PIXELS + 16);
+    ls[1] = new Tanh(512);
+    ls[2] = new Tanh(512);
+    ls[3] = new RandomSoftmax();
+    for( int i = 0; i < ls.length; i++ ) {
+      ls[i].rate = .001f;
+      if( velocity != null ) {
+        ls[i].momentumStart = .9f;
+        ls[i].momentumStable = .9f;
+        ls[i].velocity = velocity;
+      }
+    }
+    NeuralNet.init(ls, true);
+    return ls;
+  }
+
+  static class PatternInput extends RandomInput {
+    PatternInput(int pixels) {
+      super(pixels);
+    }
+
+    @Override
+    protected void fprop(boolean training) {
+      // Same class as RandomSoftmax's target
+      int x = (int) (_pos % 10) * 0x9E3779B9 | 1;
+      int y = (int) _pos * 0x85EBCA6B | 1;
+      for( int i = 0; i < _a.length; i++ ) {
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        y ^= y << 13;
+        y ^= y >>> 17;
+        y ^= y << 5;
+        _a[i] = .2f * (x & 0xffff) / 65536f + .8f * (y & 0xffff) / 65536f;
+      }
+    }
+  }
+}
@@ -0,0 +1,33 @@
+package samples;
+
+import snn.*;
+
+/**
+ * Reports throughput of the sharded trainer for each thread count, and the scaling efficiency of
+ * each added core.
+ */
+public class ScalingBench {
+  public static void main(String[] args) throws Exception {
+    int cores = Runtime.getRuntime().availableProcessors();
+    int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+    double base = 0, previous = 0;
+    for( int threads = 1; threads <= cores; threads++ ) {
+      Layer[] ls = LayoutBench.build(0);
+      Trainer.Sharded trainer = new Trainer.Sharded(ls, 0, nodes, threads, 1);
+      trainer.start();
+      Thread.sleep(2000); // Warmup
+      long start = trainer.processed(), time = System.nanoTime();
+      Thread.sleep(5000);
+      double rate = (trainer.processed() - start) / ((System.nanoTime() - time) / 1e9);
+      trainer.cancel();
+      trainer.join();
+      if( threads == 1 )
+        base = rate;
+      double efficiency = rate / (threads * base);
+      double added = (rate - previous) / base;
+      System.out.println(threads + " threads: " + (int) rate + " samples/s, efficiency " + //
+          String.format("%.2f", efficiency) + ", last core added " + String.format("%.2f", added) + " core");
+      previous = rate;
+    }
+  }
+}
@@ -129,6 +129,13 @@ public final class FileMap implements Closeable {
     return _length;
   }
 
+  /**
+   * Start of mapped data, for native code.
+   */
+  public long address() {
+    return _address;
+  }
+
   public float getFloat(long off) {
     assert off % 4 == 0;
     if( off < 0 || off + 4 > _length )
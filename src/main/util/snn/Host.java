@@ -95,28 +95,17 @@ public class Host implements Serializable {
 
   public static void rsync(final Host[] hosts, final String folder, final Set<String> includes,
       final Set<String> excludes, final boolean delete) {
-    ArrayList<Thread> threads = new ArrayList<Thread>();
-
+    Tasks.Scope scope = new Tasks.Scope("rsync");
     for( int i = 0; i < hosts.length; i++ ) {
       final int i_ = i;
-      Thread t = new Thread() {
+      scope.io(new Runnable() {
         @Override
         public void run() {
           hosts[i_].rsync(folder, includes, excludes, delete);
         }
-      };
-      t.setDaemon(true);
-      t.start();
-      threads.add(t);
-    }
-
-    for( Thread t : threads ) {
-      try {
-        t.join();
-      } catch( InterruptedException e ) {
-        throw new RuntimeException(e);
-      }
+      });
     }
+    scope.join();
   }
 
   @Override
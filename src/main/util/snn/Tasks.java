@@ -0,0 +1,179 @@
+package snn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs threads for trainers, streamers and processes. Tasks are started in scopes that own them.
+ * Joining a scope waits for all of its tasks and rethrows their first failure. Cancelling a scope
+ * interrupts its tasks. Compute workers and process output forwarders get dedicated threads.
+ * Other I/O-bound tasks such as rsyncs share a pool of daemon threads, which stands in for virtual threads on Java 7. Scopes
+ * with running tasks are tracked, so shutdown() can stop all of them, e.g. between experiments
+ * run in the same VM.
+ */
+public final class Tasks {
+  private Tasks() {
+  }
+
+  private static final ExecutorService _io = Executors.newCachedThreadPool(new ThreadFactory() {
+    final AtomicInteger _count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "I/O " + _count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private static final Set<Scope> _open = Collections.newSetFromMap(new ConcurrentHashMap<Scope, Boolean>());
+  private static final Scope _background = new Scope("Background");
+
+  public static class Scope {
+    final String _name;
+    final ArrayList<Task> _tasks = new ArrayList<Task>();
+
+    public Scope(String name) {
+      _name = name;
+    }
+
+    /**
+     * Runs a compute worker on its own thread. The thread is not a daemon, even if started from
+     * one, so the VM does not exit before it returns.
+     */
+    public void compute(String name, Runnable task) {
+      Task future = new Task(this, task);
+      add(future);
+      Thread thread = new Thread(future, name);
+      thread.setDaemon(false);
+      thread.start();
+    }
+
+    /**
+     * Runs an I/O-bound task on the shared pool.
+     */
+    public void io(Runnable task) {
+      Task future = new Task(this, task);
+      add(future);
+      _io.execute(future);
+    }
+
+    private synchronized void add(Task future) {
+      if( _tasks.isEmpty() )
+        _open.add(this);
+      _tasks.add(future);
+    }
+
+    /**
+     * Forgets a task that ended without failure, so that scopes which are never joined, e.g.
+     * background(), do not accumulate them. Failed tasks are kept for join() to rethrow.
+     */
+    synchronized void done(Task future) {
+      _tasks.remove(future);
+      if( _tasks.isEmpty() )
+        _open.remove(this);
+    }
+
+    /**
+     * Waits for all tasks, including ones started meanwhile, to have returned from their threads,
+     * also when cancelled. Rethrows the first failure, if any, once all are done.
+     */
+    public void join() {
+      Throwable failure = null;
+      for( ;; ) {
+        Task future;
+        synchronized( this ) {
+          if( _tasks.isEmpty() ) {
+            _open.remove(this);
+            break;
+          }
+          future = _tasks.get(0);
+        }
+        try {
+          // get() returns as soon as a task is cancelled, while it can still be running
+          future._ended.await();
+          future.get();
+        } catch( CancellationException e ) {
+          // Cancelled by user
+        } catch( ExecutionException e ) {
+          if( failure == null )
+            failure = e.getCause();
+        } catch( InterruptedException e ) {
+          cancel();
+          throw new RuntimeException(e);
+        }
+        synchronized( this ) {
+          _tasks.remove(future);
+        }
+      }
+      if( failure instanceof RuntimeException )
+        throw (RuntimeException) failure;
+      if( failure instanceof Error )
+        throw (Error) failure;
+      if( failure != null )
+        throw new RuntimeException(failure);
+    }
+
+    /**
+     * Interrupts all tasks. Tasks are expected to check for interruption.
+     */
+    public synchronized void cancel() {
+      for( Future<?> future : _tasks )
+        future.cancel(true);
+    }
+
+    @Override
+    public String toString() {
+      return "Scope " + _name;
+    }
+  }
+
+  /**
+   * Counts down a latch once its runnable has returned, or right away if cancelled before running.
+   */
+  static final class Task extends FutureTask<Void> {
+    final Scope _scope;
+    final CountDownLatch _ended = new CountDownLatch(1);
+    private volatile boolean _failed;
+
+    Task(Scope scope, Runnable runnable) {
+      super(runnable, null);
+      _scope = scope;
+    }
+
+    @Override
+    public void run() {
+      try {
+        super.run();
+      } finally {
+        _ended.countDown();
+        if( !_failed )
+          _scope.done(this);
+      }
+    }
+
+    @Override
+    protected void setException(Throwable t) {
+      _failed = true;
+      super.setException(t);
+    }
+  }
+
+  /**
+   * Scope for tasks not owned by a component, e.g. forwarding output of processes.
+   */
+  public static Scope background() {
+    return _background;
+  }
+
+  /**
+   * Cancels all scopes with running tasks.
+   */
+  public static void shutdown() {
+    for( Scope scope : _open )
+      scope.cancel();
+  }
+}
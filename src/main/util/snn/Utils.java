@@ -181,6 +181,16 @@ public class Utils {
     }
   }
 
+  public static void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[1024];
+    for( ;; ) {
+      int count = in.read(buffer);
+      if( count == -1 )
+        break;
+      out.write(buffer, 0, count);
+    }
+  }
+
   public static String join(char sep, Object[] array) {
     return join(sep, Arrays.asList(array));
   }
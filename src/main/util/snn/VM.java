@@ -17,6 +17,7 @@ public class VM implements Serializable {
   transient final ArrayList<String> _args;
   transient Process _process;
   transient File _out, _err;
+  transient Tasks.Scope _forwarders;
   static String _local;
 
   public VM(Runnable run) {
@@ -52,10 +53,11 @@ public class VM implements Serializable {
     ProcessBuilder builder = new ProcessBuilder(list);
     try {
       _process = builder.start();
+      _forwarders = new Tasks.Scope("Forwarders");
       if( _out != null )
-        persistIO(_process, _out, _err);
+        persistIO(_forwarders, _process, _out, _err);
       else
-        inheritIO(_process, null);
+        inheritIO(_forwarders, _process, null);
     } catch( IOException e ) {
       throw new RuntimeException(e);
     }
@@ -72,9 +74,14 @@ public class VM implements Serializable {
     }
   }
 
+  /**
+   * Also waits for the process output to have been forwarded.
+   */
   public int waitFor() {
     try {
-      return _process.waitFor();
+      int code = _process.waitFor();
+      _forwarders.join();
+      return code;
     } catch( InterruptedException e ) {
       throw new RuntimeException(e);
     }
@@ -90,7 +97,7 @@ public class VM implements Serializable {
   }
 
   public static void exitWithParent() {
-    Thread thread = new Thread() {
+    Tasks.background().io(new Runnable() {
       @Override
       public void run() {
         // Avoid on Windows as it exits immediately. Seems to work using Java7
@@ -105,29 +112,40 @@ public class VM implements Serializable {
             }
             if( b < 0 ) {
               Log.write("Assuming parent done, exit(0)");
+              Tasks.shutdown();
               System.exit(0);
             }
           }
         }
       }
-    };
-    thread.setDaemon(true);
-    thread.start();
+    });
   }
 
-  public static void inheritIO(Process process, final String header) {
-    forward(process, header, process.getInputStream(), System.out);
-    forward(process, header, process.getErrorStream(), System.err);
+  public static void inheritIO(Process process, String header) {
+    inheritIO(Tasks.background(), process, header);
   }
 
   public static void persistIO(Process process, File out, File err) throws IOException {
-    forward(process, null, process.getInputStream(), new PrintStream(out));
-    forward(process, null, process.getErrorStream(), new PrintStream(err));
+    persistIO(Tasks.background(), process, out, err);
+  }
+
+  static void inheritIO(Tasks.Scope scope, Process process, String header) {
+    forward(scope, header, process.getInputStream(), System.out);
+    forward(scope, header, process.getErrorStream(), System.err);
   }
 
-  private static void forward(Process process, final String header, InputStream source, final PrintStream target) {
+  static void persistIO(Tasks.Scope scope, Process process, File out, File err) throws IOException {
+    forward(scope, null, process.getInputStream(), new PrintStream(out));
+    forward(scope, null, process.getErrorStream(), new PrintStream(err));
+  }
+
+  /**
+   * Forwarders run on dedicated non-daemon threads, daemon ones would drop output still in the
+   * pipe when the VM exits.
+   */
+  private static void forward(Tasks.Scope scope, final String header, InputStream source, final PrintStream target) {
     final BufferedReader source_ = new BufferedReader(new InputStreamReader(source));
-    Thread thread = new Thread() {
+    scope.compute("Forwarder", new Runnable() {
       @Override
       public void run() {
         try {
@@ -142,8 +160,7 @@ public class VM implements Serializable {
           // Ignore, process probably done
         }
       }
-    };
-    thread.start();
+    });
   }
 
   public static String cloneJavaArgs() {
@@ -235,7 +252,7 @@ public class VM implements Serializable {
           w._process.destroy();
         }
       });
-      w._process.waitFor();
+      w.waitFor();
     }
 
     protected abstract void exec();
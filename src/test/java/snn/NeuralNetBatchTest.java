@@ -0,0 +1,54 @@
+package snn;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NeuralNetBatchTest {
+  static Layer[] iris(NeuralNetMLPReference ref) {
+    Layer[] ls = NeuralNetIrisTest.iris(ref, new Layer.Tanh(7));
+    NeuralNet.init(ls, true);
+    return ls;
+  }
+
+  @Test
+  public void fprop() throws Exception {
+    NeuralNetMLPReference ref = new NeuralNetMLPReference();
+    ref.init();
+    Layer[] ls = iris(ref);
+    int n = 16;
+    for( int i = 0; i < ls.length; i++ )
+      ls[i].batch(n);
+    Layer.Input input = (Layer.Input) ls[0];
+    for( int r = 0; r < n; r++ ) {
+      input._rows[r] = r;
+      input.row(r);
+      input.fprop(false);
+    }
+    for( int i = 1; i < ls.length; i++ )
+      ls[i].fprop(n, false);
+    float[][] tile = ls[2]._as;
+
+    // Same samples through the per-sample path
+    Layer[] single = iris(ref);
+    for( int i = 0; i < single.length; i++ )
+      single[i]._w = ls[i]._w;
+    for( int r = 0; r < n; r++ ) {
+      ((Layer.Input) single[0])._pos = r;
+      for( int i = 0; i < single.length; i++ )
+        single[i].fprop(false);
+      for( int o = 0; o < single[2].units; o++ )
+        Assert.assertEquals(single[2]._a[o], tile[r][o], 1e-5f);
+    }
+  }
+
+  @Test
+  public void train() throws Exception {
+    NeuralNetMLPReference ref = new NeuralNetMLPReference();
+    ref.init();
+    Layer[] ls = iris(ref);
+    Trainer.SingleThreaded trainer = new Trainer.SingleThreaded(ls, 2000, 8);
+    trainer.run();
+    NeuralNet.Errors e = NeuralNet.eval(ls, 0, null);
+    Assert.assertTrue(e.toString(), e.classification < .1);
+  }
+}
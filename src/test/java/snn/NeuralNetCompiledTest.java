@@ -0,0 +1,70 @@
+package snn;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class NeuralNetCompiledTest {
+  @Test
+  public void literals() {
+    Assert.assertEquals("0.5f", Trainer.Compiled.c(.5f));
+    Assert.assertEquals("1.0E-4f", Trainer.Compiled.c(1e-4f));
+    Assert.assertEquals("NAN", Trainer.Compiled.c(Float.NaN));
+    Assert.assertEquals("INFINITY", Trainer.Compiled.c(Float.POSITIVE_INFINITY));
+    Assert.assertEquals("-INFINITY", Trainer.Compiled.c(Float.NEGATIVE_INFINITY));
+  }
+
+  /**
+   * Checks constants of the generated code for a small topology, and that it compiles with
+   * Trainer.h when a C compiler is available.
+   */
+  @Test
+  public void generate() throws Exception {
+    NeuralNetMLPReference ref = new NeuralNetMLPReference();
+    ref.init();
+    Layer[] ls = NeuralNetGeneratedTest.iris(ref);
+    ls[2].l1 = .0001f;
+    NeuralNet.init(ls, false);
+    String code = new Trainer.Compiled(ls, 1, null).generate();
+    Assert.assertTrue(code.contains("#define LAYERS 4\n"));
+    Assert.assertTrue(code.contains("#define INPUTS 4\n"));
+    Assert.assertTrue(code.contains("  float a1[8], e1[8];\n"));
+    Assert.assertTrue(code.contains("  float a2[6], e2[6];\n"));
+    Assert.assertTrue(code.contains("    s->a1[o] = tanhf(sum);\n"));
+    Assert.assertTrue(code.contains("    s->a2[o] = sum > 0 ? sum : 0;\n"));
+    Layer l = ls[2];
+    Assert.assertTrue(code.contains("    const float *x = w + " + l._wi + " + o * 8;\n"));
+    Assert.assertTrue(code.contains("    float sum = w[" + l._bi + " + o];\n"));
+    Assert.assertTrue(code.contains("r[2] * 1.0E-4f * sign(x[i])"));
+    Assert.assertFalse(code.contains("r[3] * 0.0f * sign"));
+
+    File header = new File("src/main/java/snn/Trainer.h");
+    Assume.assumeTrue(header.exists() && new File("/usr/bin/gcc").exists());
+    File dir = File.createTempFile("snn", "");
+    dir.delete();
+    dir.mkdir();
+    try {
+      write(new File(dir, "Network.h"), code);
+      write(new File(dir, "main.c"), "#include \"" + header.getAbsolutePath() + "\"\nint main() {\n  return 0;\n}\n");
+      Process p = new ProcessBuilder("gcc", "-std=c99", "-fsyntax-only", "-I", dir.getPath(), "main.c").directory(dir)
+          .inheritIO().start();
+      Assert.assertEquals(0, p.waitFor());
+    } finally {
+      for( File f : dir.listFiles() )
+        f.delete();
+      dir.delete();
+    }
+  }
+
+  private static void write(File file, String text) throws Exception {
+    FileWriter w = new FileWriter(file);
+    try {
+      w.write(text);
+    } finally {
+      w.close();
+    }
+  }
+}
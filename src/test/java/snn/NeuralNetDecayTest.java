@@ -0,0 +1,73 @@
+package snn;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NeuralNetDecayTest {
+  static Layer[] iris(NeuralNetMLPReference ref, boolean lazy) {
+    Layer[] ls = NeuralNetIrisTest.iris(ref, new Layer.Tanh(7));
+    for( int i = 0; i < ls.length; i++ ) {
+      ls[i].l1 = .0001f;
+      ls[i].l2 = .001f;
+      ls[i].lazyDecay = lazy;
+    }
+    return ls;
+  }
+
+  /**
+   * Iris inputs are never zero, so lazy decay must follow eager decay.
+   */
+  @Test
+  public void compare() throws Exception {
+    NeuralNetMLPReference ref = new NeuralNetMLPReference();
+    ref.init();
+    Layer[] eager = iris(ref, false);
+    float[] a = NeuralNet.init(eager, true);
+    Layer[] lazy = iris(ref, true);
+    float[] b = NeuralNet.init(lazy, false);
+    System.arraycopy(a, 0, b, 0, a.length);
+
+    new Trainer.SingleThreaded(eager, 100).run();
+    new Trainer.SingleThreaded(lazy, 100).run();
+    NeuralNet.flush(lazy);
+    for( int i = 0; i < a.length; i++ )
+      Assert.assertEquals(a[i], b[i], 1e-3f);
+  }
+
+  /**
+   * Zeroes some inputs of each sample, so that weights miss updates and catch up on them, with a
+   * rate that changes in between.
+   */
+  @Test
+  public void sparse() throws Exception {
+    NeuralNetMLPReference ref = new NeuralNetMLPReference();
+    ref.init();
+    float[][] data = new float[ref._trainData.length][];
+    for( int r = 0; r < data.length; r++ ) {
+      data[r] = ref._trainData[r].clone();
+      for( int i = 0; i < 4; i++ )
+        if( (r / 25 + i) % 3 != 0 )
+          data[r][i] = 0;
+    }
+    ref._trainData = data;
+    Layer[] eager = iris(ref, false);
+    Layer[] lazy = iris(ref, true);
+    for( int i = 0; i < eager.length; i++ )
+      eager[i].rateAnnealing = lazy[i].rateAnnealing = 1e-3f;
+    float[] a = NeuralNet.init(eager, true);
+    float[] b = NeuralNet.init(lazy, false);
+    System.arraycopy(a, 0, b, 0, a.length);
+
+    new Trainer.SingleThreaded(eager, 20).run();
+    new Trainer.SingleThreaded(lazy, 20).run();
+    Layer l = lazy[1];
+    int pending = 0;
+    for( int i = 0; i < l._wl; i++ )
+      if( l._stamps[i] != l._sums[i / l._previous.units] )
+        pending++;
+    Assert.assertTrue(pending > 0);
+    NeuralNet.flush(lazy);
+    for( int i = 0; i < a.length; i++ )
+      Assert.assertEquals(a[i], b[i], 1e-4f);
+  }
+}
@@ -0,0 +1,31 @@
+package snn;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NeuralNetEvalTest {
+  @Test
+  public void parallel() throws Exception {
+    NeuralNetMLPReference ref = new NeuralNetMLPReference();
+    ref.init();
+    Layer[] ls = NeuralNetBatchTest.iris(ref);
+    new Trainer.SingleThreaded(ls, 10).run();
+    long[][] a = new long[3][3], b = new long[3][3];
+    NeuralNet.Errors expected = NeuralNet.eval(ls, 0, a);
+    int clones = ls[1]._clones.get();
+    NeuralNet.Errors actual = NeuralNet.evalParallel(ls, 0, b);
+    // Training clones, and their rounding streams, are not affected
+    Assert.assertEquals(clones, ls[1]._clones.get());
+    Assert.assertEquals(expected.classification, actual.classification, 0);
+    Assert.assertEquals(expected.mean_square, actual.mean_square, 1e-12);
+    for( int i = 0; i < a.length; i++ )
+      Assert.assertArrayEquals(a[i], b[i]);
+
+    // Compiled model, as used by monitors on snapshots
+    Model model = new Model(ls);
+    expected = model.eval(ls, 0, null);
+    actual = model.evalParallel(ls, 0, null);
+    Assert.assertEquals(expected.classification, actual.classification, 0);
+    Assert.assertEquals(expected.mean_square, actual.mean_square, 1e-9);
+  }
+}
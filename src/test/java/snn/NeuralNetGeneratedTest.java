@@ -0,0 +1,50 @@
+package snn;
+
+import java.io.File;
+import java.io.FileFilter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NeuralNetGeneratedTest {
+  static Layer[] iris(NeuralNetMLPReference ref) {
+    Layer[] ls = NeuralNetIrisTest.iris(ref, new Layer.Tanh(8), new Layer.Rectifier(6));
+    for( int i = 0; i < ls.length; i++ )
+      ls[i].l2 = .001f;
+    return ls;
+  }
+
+  /**
+   * Generated code must train like layers, on a single thread.
+   */
+  @Test
+  public void compare() throws Exception {
+    NeuralNetMLPReference ref = new NeuralNetMLPReference();
+    ref.init();
+    Layer[] ls = iris(ref);
+    float[] a = NeuralNet.init(ls, true);
+    Layer[] gen = iris(ref);
+    float[] b = NeuralNet.init(gen, false);
+    System.arraycopy(a, 0, b, 0, a.length);
+
+    new Trainer.SingleThreaded(ls, 50).run();
+    int dirs = temps();
+    Trainer.Generated trainer = new Trainer.Generated(gen, 50, 1);
+    Assert.assertEquals(dirs, temps());
+    trainer.start();
+    trainer.join();
+    Assert.assertEquals(trainer.processed(), 50 * ref._trainData.length);
+    for( int i = 0; i < a.length; i++ )
+      Assert.assertEquals(a[i], b[i], 1e-3f);
+  }
+
+  private static int temps() {
+    File[] files = new File(System.getProperty("java.io.tmpdir")).listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File f) {
+        return f.isDirectory() && f.getName().startsWith("snn");
+      }
+    });
+    return files.length;
+  }
+}
@@ -0,0 +1,47 @@
+package snn;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NeuralNetHalfTest {
+  @Test
+  public void round() {
+    Assert.assertEquals(1.5f, Half.toFloat(Half.round(1.5f)), 0);
+    Assert.assertEquals(1, Half.toFloat(Half.round(1 + 1e-3f)), 0);
+    // Stochastic rounding keeps small values on average
+    float v = 1 + 1e-3f, sum = 0;
+    int seed = 1;
+    for( int i = 0; i < 10000; i++ )
+      sum += Half.toFloat(Half.round(v, seed = Half.next(seed)));
+    Assert.assertEquals(v, sum / 10000, 1e-4f);
+  }
+
+  /**
+   * Rounding streams are seeded per layer and clone, so that seeded runs are reproducible.
+   */
+  @Test
+  public void reproducible() throws Exception {
+    NeuralNetMLPReference ref = new NeuralNetMLPReference();
+    ref.init();
+    short[][] h = new short[2][];
+    for( int run = 0; run < h.length; run++ ) {
+      Layer[] ls = NeuralNetIrisTest.iris(ref, new Layer.Tanh(7));
+      h[run] = NeuralNet.initHalf(ls, new Random(42));
+      new Trainer.SingleThreaded(ls, 10).run();
+    }
+    Assert.assertArrayEquals(h[0], h[1]);
+  }
+
+  @Test
+  public void train() throws Exception {
+    NeuralNetMLPReference ref = new NeuralNetMLPReference();
+    ref.init();
+    Layer[] ls = NeuralNetIrisTest.iris(ref, new Layer.Tanh(7));
+    NeuralNet.initHalf(ls, true);
+    new Trainer.SingleThreaded(ls, 1000).run();
+    NeuralNet.Errors e = NeuralNet.eval(ls, 0, null);
+    Assert.assertTrue(e.toString(), e.classification < .1);
+  }
+}
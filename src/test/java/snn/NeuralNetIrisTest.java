@@ -42,6 +42,20 @@ public class NeuralNetIrisTest {
     }
   }
 
+  /**
+   * Iris layers around given hidden ones, with rate .01. Weights are not allocated yet, so that
+   * tests can set other options first, c.f. NeuralNet.init.
+   */
+  static Layer[] iris(NeuralNetMLPReference ref, Layer... hidden) {
+    Layer[] ls = new Layer[hidden.length + 2];
+    ls[0] = new TestInput(ref._trainData);
+    System.arraycopy(hidden, 0, ls, 1, hidden.length);
+    ls[ls.length - 1] = new TestSoftmax(ref._trainData);
+    for( int i = 0; i < ls.length; i++ )
+      ls[i].rate = .01f;
+    return ls;
+  }
+
   @Test
   public void compare() throws Exception {
     NeuralNetMLPReference ref = new NeuralNetMLPReference();
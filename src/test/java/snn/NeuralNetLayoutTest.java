@@ -0,0 +1,44 @@
+package snn;
+
+import java.io.File;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NeuralNetLayoutTest {
+  static Layer[] iris(NeuralNetMLPReference ref, int tile) {
+    Layer[] ls = NeuralNetIrisTest.iris(ref, new Layer.Tanh(8));
+    ls[1].tile = tile;
+    NeuralNet.init(ls, false);
+    return ls;
+  }
+
+  /**
+   * Tiled layers must train like row-major ones, starting from the same checkpoint.
+   */
+  @Test
+  public void compare() throws Exception {
+    NeuralNetMLPReference ref = new NeuralNetMLPReference();
+    ref.init();
+    Layer[] rows = iris(ref, 0);
+    Layer[] tiles = iris(ref, 2);
+    rows[1].randomize(new MersenneTwisterRNG());
+    rows[2].randomize(new MersenneTwisterRNG());
+    File file = File.createTempFile("snn", ".bin");
+    try {
+      NeuralNet.save(rows, file);
+      NeuralNet.load(tiles, file);
+      Layer h = tiles[1];
+      Assert.assertEquals(rows[1]._w[rows[1].weight(5, 3)], h._w[h._wi + 2 * 2 * 4 + 2 * 2 + 2 + 1], 0);
+
+      new Trainer.SingleThreaded(rows, 50).run();
+      new Trainer.SingleThreaded(tiles, 50).run();
+      for( int o = 0; o < h.units; o++ )
+        for( int i = 0; i < h._previous.units; i++ )
+          Assert.assertEquals(rows[1]._w[rows[1].weight(o, i)], h._w[h.weight(o, i)], 1e-4f);
+      Assert.assertEquals(NeuralNet.eval(rows, 0, null).mean_square, NeuralNet.eval(tiles, 0, null).mean_square, 1e-4);
+    } finally {
+      file.delete();
+    }
+  }
+}
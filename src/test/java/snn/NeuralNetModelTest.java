@@ -0,0 +1,31 @@
+package snn;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NeuralNetModelTest {
+  @Test
+  public void compare() throws Exception {
+    NeuralNetMLPReference ref = new NeuralNetMLPReference();
+    ref.init();
+    Layer[] ls = NeuralNetBatchTest.iris(ref);
+    Model model = new Model(ls);
+    new Trainer.SingleThreaded(ls, 100).run();
+
+    // Model reads weights by reference, so sees training
+    Layer.Input input = (Layer.Input) ls[0];
+    float[] out = new float[model.outputs()];
+    for( input._pos = 0; input._pos < input._len; input._pos++ ) {
+      for( int i = 0; i < ls.length; i++ )
+        ls[i].fprop(false);
+      model.predict(ls[0]._a, out);
+      for( int o = 0; o < out.length; o++ )
+        Assert.assertEquals(ls[2]._a[o], out[o], 1e-6f);
+    }
+    input._pos = 0;
+    NeuralNet.Errors expected = NeuralNet.eval(ls, 0, null);
+    NeuralNet.Errors actual = model.eval(ls, 0, null);
+    Assert.assertEquals(expected.classification, actual.classification, 0);
+    Assert.assertEquals(expected.mean_square, actual.mean_square, 1e-6);
+  }
+}
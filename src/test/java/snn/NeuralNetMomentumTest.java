@@ -0,0 +1,58 @@
+package snn;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NeuralNetMomentumTest {
+  static Layer[] iris(NeuralNetMLPReference ref, Layer.Velocity velocity) {
+    Layer[] ls = NeuralNetIrisTest.iris(ref, new Layer.Tanh(7));
+    for( int i = 0; i < ls.length; i++ ) {
+      ls[i].momentumStart = .5f;
+      ls[i].momentumRamp = 10000;
+      ls[i].momentumStable = .9f;
+      ls[i].velocity = velocity;
+    }
+    NeuralNet.init(ls, true);
+    return ls;
+  }
+
+  @Test
+  public void buffers() throws Exception {
+    NeuralNetMLPReference ref = new NeuralNetMLPReference();
+    ref.init();
+    Layer[] ls = iris(ref, Layer.Velocity.Shared);
+    Assert.assertEquals(ls[1]._wl + ls[1]._bl, ls[1]._wm.length);
+    Layer[] clones = clones(ls);
+    Assert.assertSame(ls[1]._wm, clones[1]._wm);
+
+    ls = iris(ref, Layer.Velocity.PerThread);
+    clones = clones(ls);
+    Assert.assertNotSame(ls[1]._wm, clones[1]._wm);
+    Assert.assertEquals(ls[1]._wl + ls[1]._bl, clones[1]._wm.length);
+  }
+
+  static Layer[] clones(Layer[] ls) {
+    Layer[] clones = new Layer[ls.length];
+    for( int y = 0; y < ls.length; y++ )
+      clones[y] = ls[y].clone();
+    for( int y = 0; y < ls.length; y++ )
+      clones[y].init(clones, y, 0);
+    return clones;
+  }
+
+  @Test
+  public void train() throws Exception {
+    NeuralNetMLPReference ref = new NeuralNetMLPReference();
+    ref.init();
+    for( Layer.Velocity velocity : Layer.Velocity.values() ) {
+      Layer[] ls = iris(ref, velocity);
+      new Trainer.SingleThreaded(ls, 100).run();
+      float sum = 0;
+      for( float v : ls[1]._wm )
+        sum += Math.abs(v);
+      Assert.assertTrue(sum > 0);
+      NeuralNet.Errors e = NeuralNet.eval(ls, 0, null);
+      Assert.assertTrue(velocity + " " + e, e.classification < .1);
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package snn;
+
+import java.io.File;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NeuralNetOptimizerTest {
+  static Layer[] iris(NeuralNetMLPReference ref, Layer.Optimizer optimizer, boolean halfState) {
+    Layer[] ls = NeuralNetIrisTest.iris(ref, new Layer.Tanh(7));
+    for( int i = 0; i < ls.length; i++ ) {
+      ls[i].optimizer = optimizer;
+      ls[i].halfState = halfState;
+      // Adagrad steps only shrink, it needs a larger rate to converge in the same epochs
+      if( optimizer == Layer.Optimizer.Adagrad )
+        ls[i].rate = .05f;
+    }
+    NeuralNet.init(ls, new Random(0));
+    return ls;
+  }
+
+  @Test
+  public void train() throws Exception {
+    NeuralNetMLPReference ref = new NeuralNetMLPReference();
+    ref.init();
+    for( Layer.Optimizer optimizer : Layer.Optimizer.values() ) {
+      for( boolean halfState : new boolean[] { false, true } ) {
+        Layer[] ls = iris(ref, optimizer, halfState);
+        new Trainer.SingleThreaded(ls, 100).run();
+        NeuralNet.Errors e = NeuralNet.eval(ls, 0, null);
+        Assert.assertTrue(optimizer + " " + e, e.classification < .1);
+      }
+    }
+  }
+
+  /**
+   * Adam's bias corrections must count updates, i.e. mini-batches, also between refreshes.
+   */
+  @Test
+  public void corrections() throws Exception {
+    NeuralNetMLPReference ref = new NeuralNetMLPReference();
+    ref.init();
+    Layer[] ls = iris(ref, Layer.Optimizer.Adam, false);
+    Trainer.SingleThreaded trainer = new Trainer.SingleThreaded(ls, 1, 4);
+    trainer._refresh = Trainer.REFRESH;
+    trainer.run();
+    long updates = trainer.processed() / 4;
+    Assert.assertEquals(updates, ls[1]._t);
+    Assert.assertEquals(1 / (1 - Math.pow(ls[1].beta1, updates + 1)), ls[1]._c1, 1e-5);
+    Assert.assertEquals(1 / (1 - Math.pow(ls[1].beta2, updates + 1)), ls[1]._c2, 1e-2);
+  }
+
+  @Test
+  public void checkpoint() throws Exception {
+    NeuralNetMLPReference ref = new NeuralNetMLPReference();
+    ref.init();
+    Layer[] ls = iris(ref, Layer.Optimizer.Adam, false);
+    new Trainer.SingleThreaded(ls, 1).run();
+    File file = File.createTempFile("snn", ".ckpt");
+    try {
+      NeuralNet.save(ls, file);
+      Layer[] loaded = iris(ref, Layer.Optimizer.Adam, false);
+      NeuralNet.load(loaded, file);
+      Assert.assertArrayEquals(ls[1]._w, loaded[1]._w, 0);
+      Assert.assertArrayEquals(ls[1]._s1, loaded[1]._s1, 0);
+      Assert.assertArrayEquals(ls[1]._s2, loaded[1]._s2, 0);
+
+      // Other optimizers only take weights
+      Layer[] sgd = iris(ref, Layer.Optimizer.SGD, false);
+      NeuralNet.load(sgd, file);
+      Assert.assertArrayEquals(ls[1]._w, sgd[1]._w, 0);
+    } finally {
+      file.delete();
+    }
+  }
+}
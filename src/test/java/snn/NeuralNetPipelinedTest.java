@@ -0,0 +1,31 @@
+package snn;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NeuralNetPipelinedTest {
+  @Test
+  public void partition() {
+    Layer[] ls = new Layer[5];
+    ls[0] = new Layer.Tanh(100);
+    ls[1] = new Layer.Tanh(100);
+    ls[2] = new Layer.Tanh(100);
+    ls[3] = new Layer.Tanh(10);
+    ls[4] = new Layer.Tanh(10);
+    Assert.assertArrayEquals(new int[] { 1, 2, 5 }, Trainer.Pipelined.partition(ls, 2));
+    Assert.assertArrayEquals(new int[] { 1, 2, 3, 4, 5 }, Trainer.Pipelined.partition(ls, 4));
+  }
+
+  @Test
+  public void train() throws Exception {
+    NeuralNetMLPReference ref = new NeuralNetMLPReference();
+    ref.init();
+    Layer[] ls = NeuralNetBatchTest.iris(ref);
+    Trainer.Pipelined trainer = new Trainer.Pipelined(ls, 1000, ls.length - 1, 4);
+    trainer.start();
+    trainer.join();
+    Assert.assertEquals(1000L * ref._trainData.length, trainer.processed());
+    NeuralNet.Errors e = NeuralNet.eval(ls, 0, null);
+    Assert.assertTrue(e.toString(), e.classification < .1);
+  }
+}
@@ -0,0 +1,29 @@
+package snn;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NeuralNetQuantizedTest {
+  @Test
+  public void compare() throws Exception {
+    NeuralNetMLPReference ref = new NeuralNetMLPReference();
+    ref.init();
+    Layer[] ls = NeuralNetBatchTest.iris(ref);
+    new Trainer.SingleThreaded(ls, 1000).run();
+    Quantized q = new Quantized(ls);
+
+    Layer.Input input = (Layer.Input) ls[0];
+    float[] out = new float[q.outputs()];
+    for( input._pos = 0; input._pos < input._len; input._pos++ ) {
+      for( int i = 0; i < ls.length; i++ )
+        ls[i].fprop(false);
+      q.predict(ls[0]._a, out);
+      for( int o = 0; o < out.length; o++ )
+        Assert.assertEquals(ls[2]._a[o], out[o], .05f);
+    }
+    input._pos = 0;
+    NeuralNet.Errors expected = NeuralNet.eval(ls, 0, null);
+    NeuralNet.Errors actual = q.eval(ls, 0, null);
+    Assert.assertEquals(expected.classification, actual.classification, .02);
+  }
+}
@@ -0,0 +1,19 @@
+package snn;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NeuralNetShardedTest {
+  @Test
+  public void train() throws Exception {
+    NeuralNetMLPReference ref = new NeuralNetMLPReference();
+    ref.init();
+    Layer[] ls = NeuralNetBatchTest.iris(ref);
+    Trainer.Sharded trainer = new Trainer.Sharded(ls, 2000, 2, 4, 1);
+    trainer.mergeInterval = 1;
+    trainer.start();
+    trainer.join();
+    NeuralNet.Errors e = NeuralNet.eval(ls, 0, null);
+    Assert.assertTrue(e.toString(), e.classification < .1);
+  }
+}
@@ -0,0 +1,25 @@
+package snn;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NeuralNetSnapshotTest {
+  @Test
+  public void frozen() throws Exception {
+    NeuralNetMLPReference ref = new NeuralNetMLPReference();
+    ref.init();
+    Layer[] ls = NeuralNetBatchTest.iris(ref);
+    Snapshot snapshot = new Snapshot(ls);
+    Trainer.SingleThreaded trainer = new Trainer.SingleThreaded(ls, 10);
+    Snapshot.View view = snapshot.take(trainer);
+    NeuralNet.Errors before = NeuralNet.eval(ls, 0, null);
+    trainer.run();
+
+    // Scores weights as they were when taken, while live ones moved
+    NeuralNet.Errors actual = new Model(ls, view).eval(ls, 0, null);
+    Assert.assertEquals(before.mean_square, actual.mean_square, 1e-6);
+    Assert.assertTrue(NeuralNet.eval(ls, 0, null).mean_square != actual.mean_square);
+    Assert.assertSame(view, snapshot.current());
+    Assert.assertNotSame(view, snapshot.take(trainer));
+  }
+}
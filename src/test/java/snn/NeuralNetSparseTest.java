@@ -0,0 +1,183 @@
+package snn;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import snn.Layer.Input;
+import snn.Layer.Softmax;
+
+public class NeuralNetSparseTest {
+  static class SparseInput extends Input {
+    final float[][] _data;
+
+    SparseInput(float[][] data) {
+      units = data[0].length;
+      _len = data.length;
+      _data = data;
+    }
+
+    @Override
+    protected void fprop(boolean training) {
+      System.arraycopy(_data[(int) _pos], 0, _a, 0, _a.length);
+    }
+  }
+
+  static class ModSoftmax extends Softmax {
+    ModSoftmax() {
+      units = 4;
+    }
+
+    @Override
+    protected int target() {
+      return (int) (pos() % units);
+    }
+  }
+
+  /**
+   * Inputs with few non-zero values each, below the sparse threshold.
+   */
+  static float[][] data(Random rand, int samples, int units, int nonZeros) {
+    float[][] data = new float[samples][units];
+    for( int r = 0; r < samples; r++ )
+      for( int k = 0; k < nonZeros; k++ )
+        data[r][rand.nextInt(units)] = rand.nextFloat();
+    return data;
+  }
+
+  static Layer[] net(float[][] data, int tile) {
+    Layer[] ls = new Layer[4];
+    ls[0] = new SparseInput(data);
+    ls[1] = new Layer.Rectifier(12);
+    ls[2] = new Layer.Rectifier(8);
+    ls[3] = new ModSoftmax();
+    for( int i = 0; i < ls.length; i++ ) {
+      ls[i].rate = .01f;
+      ls[i].tile = i == 0 ? 0 : tile;
+    }
+    NeuralNet.init(ls, true);
+    return ls;
+  }
+
+  /**
+   * Sparse fprop must give the dense weighted sums, and sparse bprop the dense errors and updates
+   * on non-zero inputs, for both layouts.
+   */
+  @Test
+  public void compare() {
+    for( int tile : new int[] { 0, 4 } ) {
+      Random rand = new MersenneTwisterRNG();
+      Layer[] ls = net(data(rand, 16, 16, 4), tile);
+      Layer l = ls[1];
+      for( int s = 0; s < 16; s++ ) {
+        ((Input) ls[0])._pos = s;
+        ls[0].fprop(true);
+        l.fprop(true);
+        Assert.assertTrue(l.sparse());
+        for( int o = 0; o < l.units; o++ )
+          Assert.assertEquals(Math.max(0, dense(l, o)), l._a[o], 1e-5f);
+      }
+
+      // Next layer on sparse rectified inputs
+      Layer n = ls[2];
+      for( int o = 0; o < l.units; o++ )
+        l._a[o] = o % 4 == 0 ? rand.nextFloat() : 0;
+      n.fprop(true);
+      Assert.assertTrue(n.sparse());
+      for( int o = 0; o < n.units; o++ )
+        Assert.assertEquals(Math.max(0, dense(n, o)), n._a[o], 1e-5f);
+
+      float[] w = n._w.clone();
+      Arrays.fill(l._e, 0);
+      float g = .5f;
+      n.bprop(3, g, n.rate, 0);
+      for( int i = 0; i < l.units; i++ ) {
+        int k = n.weight(3, i);
+        if( l._a[i] != 0 ) {
+          Assert.assertEquals(g * w[k], l._e[i], 1e-6f);
+          Assert.assertEquals(w[k] + n.rate * g * l._a[i], n._w[k], 1e-6f);
+        } else
+          Assert.assertEquals(w[k], n._w[k], 0);
+      }
+    }
+  }
+
+  /**
+   * Without decay, updating only weights of non-zero inputs must match the dense update, including
+   * the max-norm, which the sparse path tracks as a running norm.
+   */
+  @Test
+  public void eager() {
+    float[][] data = data(new MersenneTwisterRNG(), 64, 16, 4);
+    Layer[] sparse = net(data, 0), dense = net(data, 0);
+    for( int i = 1; i < sparse.length; i++ ) {
+      System.arraycopy(sparse[i]._w, 0, dense[i]._w, 0, sparse[i]._w.length);
+      sparse[i].rate = dense[i].rate = 2;
+      dense[i]._norms = null;
+    }
+    new Trainer.SingleThreaded(sparse, 4).run();
+    new Trainer.SingleThreaded(dense, 4).run();
+    float max = 0;
+    for( int o = 0; o < sparse[1].units; o++ ) {
+      float r2 = 0;
+      for( int i = 0; i < sparse[1]._previous.units; i++ )
+        r2 += sparse[1]._w[sparse[1].weight(o, i)] * sparse[1]._w[sparse[1].weight(o, i)];
+      max = Math.max(max, r2);
+    }
+    Assert.assertEquals(15, max, 1e-3f);
+    for( int i = 1; i < sparse.length; i++ )
+      Assert.assertArrayEquals(dense[i]._w, sparse[i]._w, 1e-4f);
+  }
+
+  /**
+   * Dropout bprop over the list of kept units must match the dense loop over all units, including
+   * sparse errors propagated to a previous dropout layer.
+   */
+  @Test
+  public void dropout() {
+    Random rand = new MersenneTwisterRNG();
+    Layer[] ls = new Layer[4];
+    ls[0] = new SparseInput(data(rand, 4, 16, 16));
+    ls[1] = new Layer.RectifierDropout(40);
+    ls[2] = new Layer.RectifierDropout(36);
+    ls[3] = new ModSoftmax();
+    for( int i = 0; i < ls.length; i++ )
+      ls[i].rate = .01f;
+    NeuralNet.init(ls, true);
+    for( int i = 1; i < ls.length; i++ )
+      ls[i].schedule(0);
+    Layer.RectifierDropout l = (Layer.RectifierDropout) ls[2];
+    for( int i = 0; i < 3; i++ )
+      ls[i].fprop(true);
+    for( int o = 0; o < l.units; o++ ) {
+      Assert.assertEquals(l.kept(o), Arrays.binarySearch(l._active, 0, l._activeCount, o) >= 0);
+      if( !l.kept(o) )
+        Assert.assertEquals(0, l._a[o], 0);
+    }
+    for( int o = 0; o < l.units; o++ )
+      l._e[o] = rand.nextFloat() - .5f;
+
+    float[] w = l._w.clone();
+    Arrays.fill(ls[1]._e, 0);
+    l.bprop();
+    float[] sparseW = l._w.clone(), sparseE = ls[1]._e.clone();
+    Assert.assertFalse(Arrays.equals(w, sparseW));
+
+    System.arraycopy(w, 0, l._w, 0, w.length);
+    Arrays.fill(ls[1]._e, 0);
+    for( int u = 0; u < l.units; u++ )
+      if( l._a[u] > 0 )
+        l.bprop(u, l._e[u], l._r, l._m);
+    Assert.assertArrayEquals(l._w, sparseW, 0);
+    Assert.assertArrayEquals(ls[1]._e, sparseE, 0);
+  }
+
+  private static float dense(Layer l, int o) {
+    float sum = l._w[l._bi + o];
+    for( int i = 0; i < l._previous.units; i++ )
+      sum += l._w[l.weight(o, i)] * l._previous._a[i];
+    return sum;
+  }
+}
@@ -0,0 +1,45 @@
+package snn;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NeuralNetTeamTest {
+  static Layer[] iris(NeuralNetMLPReference ref) {
+    return NeuralNetIrisTest.iris(ref, new Layer.Tanh(8), new Layer.Rectifier(7));
+  }
+
+  /**
+   * A team of one thread runs the same updates as the single threaded trainer.
+   */
+  @Test
+  public void compare() throws Exception {
+    NeuralNetMLPReference ref = new NeuralNetMLPReference();
+    ref.init();
+    Layer[] ls = iris(ref);
+    float[] a = NeuralNet.init(ls, true);
+    Layer[] team = iris(ref);
+    float[] b = NeuralNet.init(team, false);
+    System.arraycopy(a, 0, b, 0, a.length);
+
+    new Trainer.SingleThreaded(ls, 10).run();
+    Trainer.Team trainer = new Trainer.Team(team, 10, 1, 1);
+    trainer.start();
+    trainer.join();
+    for( int i = 0; i < a.length; i++ )
+      Assert.assertEquals(a[i], b[i], 1e-4f);
+  }
+
+  @Test
+  public void train() throws Exception {
+    NeuralNetMLPReference ref = new NeuralNetMLPReference();
+    ref.init();
+    Layer[] ls = iris(ref);
+    NeuralNet.init(ls, true);
+    Trainer.Team trainer = new Trainer.Team(ls, 1000, 1, 3);
+    trainer.start();
+    trainer.join();
+    Assert.assertEquals(1000L * ref._trainData.length, trainer.processed());
+    NeuralNet.Errors e = NeuralNet.eval(ls, 0, null);
+    Assert.assertTrue(e.toString(), e.classification < .1);
+  }
+}
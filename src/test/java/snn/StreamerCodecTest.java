@@ -0,0 +1,90 @@
+package snn;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StreamerCodecTest {
+  @Test
+  public void roundTrip() {
+    Random rand = new Random(0);
+    int n = Streamer.BLOCK;
+    ByteBuffer b = ByteBuffer.allocate(Streamer.PACKET);
+    for( Codec codec : new Codec[] { new Codec.Int8(), new Codec.Sign() } ) {
+      float[] d = new float[n], sent = new float[n], decoded = new float[n];
+      for( int i = 0; i < n; i++ )
+        d[i] = sent[i] = (float) rand.nextGaussian();
+      codec.encode(sent, n, b, 4);
+      codec.decode(b, 4, decoded, n);
+      Assert.assertArrayEquals(sent, decoded, 0);
+      for( int i = 0; i < n; i++ ) {
+        if( codec instanceof Codec.Int8 )
+          Assert.assertEquals(d[i], sent[i], .05f);
+        else
+          Assert.assertEquals(d[i] < 0, sent[i] < 0);
+      }
+    }
+  }
+
+  /**
+   * With residuals kept, what is sent over time follows the deltas, even at 1 bit per value.
+   */
+  @Test
+  public void feedback() {
+    Random rand = new Random(0);
+    int n = Streamer.BLOCK, rounds = 1000;
+    ByteBuffer b = ByteBuffer.allocate(Streamer.PACKET);
+    float[] g = new float[n], residual = new float[n], total = new float[n], d = new float[n];
+    for( int i = 0; i < n; i++ )
+      g[i] = (float) rand.nextGaussian() * .01f;
+    Codec codec = new Codec.Sign();
+    for( int r = 0; r < rounds; r++ ) {
+      for( int i = 0; i < n; i++ )
+        d[i] = residual[i] + g[i];
+      codec.encode(d, n, b, 4);
+      for( int i = 0; i < n; i++ ) {
+        residual[i] += g[i] - d[i];
+        total[i] += d[i];
+      }
+    }
+    for( int i = 0; i < n; i++ )
+      Assert.assertEquals(g[i] * rounds, total[i], Math.abs(g[i]) * rounds * .1f + .05f);
+  }
+
+  /**
+   * Blocks 0 and 2 are both mastered by node 0, and go in one packet.
+   */
+  @Test
+  public void stream() throws Exception {
+    SocketAddress[] nodes = new SocketAddress[] { new InetSocketAddress("127.0.0.1", 42331),
+        new InetSocketAddress("127.0.0.1", 42332) };
+    float[] w0 = new float[4 * Streamer.BLOCK], w1 = new float[4 * Streamer.BLOCK];
+    Streamer s0 = new Streamer(w0, nodes, 0), s1 = new Streamer(w1, nodes, 1);
+    s0.codec = s1.codec = new Codec.Int8();
+    // Node 1 updates blocks mastered by node 0
+    for( int i = 0; i < Streamer.BLOCK; i++ ) {
+      w1[i] = i % 7 - 3;
+      w1[2 * Streamer.BLOCK + i] = i % 5 - 2;
+    }
+    s0.start();
+    s1.start();
+    try {
+      long end = System.currentTimeMillis() + 10000;
+      while( Math.abs(w0[0] + 3) + Math.abs(w0[2 * Streamer.BLOCK] + 2) > 1e-2f ) {
+        Assert.assertTrue(System.currentTimeMillis() < end);
+        Thread.sleep(10);
+      }
+    } finally {
+      s0.close();
+      s1.close();
+    }
+    for( int i = 0; i < Streamer.BLOCK; i++ ) {
+      Assert.assertEquals(i % 7 - 3, w0[i], 1e-2f);
+      Assert.assertEquals(i % 5 - 2, w0[2 * Streamer.BLOCK + i], 1e-2f);
+    }
+  }
+}
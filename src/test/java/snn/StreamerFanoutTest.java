@@ -0,0 +1,59 @@
+package snn;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StreamerFanoutTest {
+  @Test
+  public void tree() throws Exception {
+    Streamer[] s = stream(42371, 2, null);
+    // Masters only send to ranks 1 and 2, rank 3 gets their blocks from 1. Each node is rank 1 of
+    // some master.
+    for( int i = 0; i < s.length; i++ )
+      Assert.assertTrue(s[i]._forwarded > 0);
+  }
+
+  @Test
+  public void multicast() throws Exception {
+    stream(42381, 0, new InetSocketAddress("239.255.42.1", 42389));
+  }
+
+  private static Streamer[] stream(int port, int fanout, InetSocketAddress group) throws Exception {
+    int n = 4;
+    SocketAddress[] nodes = new SocketAddress[n];
+    for( int i = 0; i < n; i++ )
+      nodes[i] = new InetSocketAddress("127.0.0.1", port + i);
+    float[][] w = new float[n][4 * Streamer.BLOCK];
+    for( int i = 0; i < w[0].length; i++ )
+      w[i / Streamer.BLOCK][i] = i;
+    Streamer[] s = new Streamer[n];
+    for( int i = 0; i < n; i++ ) {
+      s[i] = new Streamer(w[i], nodes, i);
+      s[i].fanout = fanout;
+      s[i].group = group;
+    }
+    for( int i = 0; i < n; i++ )
+      s[i].start();
+    try {
+      long end = System.currentTimeMillis() + 10000;
+      while( !same(w) && System.currentTimeMillis() < end )
+        Thread.sleep(10);
+    } finally {
+      for( int i = 0; i < n; i++ )
+        s[i].close();
+    }
+    Assert.assertTrue(same(w));
+    return s;
+  }
+
+  private static boolean same(float[][] w) {
+    for( int i = 0; i < w[0].length; i++ )
+      for( int k = 0; k < w.length; k++ )
+        if( w[k][i] != i )
+          return false;
+    return true;
+  }
+}
@@ -0,0 +1,128 @@
+package snn;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StreamerPacingTest {
+  @Test
+  public void paced() throws Exception {
+    SocketAddress[] nodes = new SocketAddress[] { new InetSocketAddress("127.0.0.1", 42361),
+        new InetSocketAddress("127.0.0.1", 42362) };
+    float[] w0 = new float[8 * Streamer.BLOCK];
+    float[] w1 = new float[8 * Streamer.BLOCK];
+    for( int i = 0; i < w0.length; i++ )
+      w0[i] = i;
+    Streamer s0 = new Streamer(w0, nodes, 0);
+    Streamer s1 = new Streamer(w1, nodes, 1);
+    // 200 packets per second
+    s0.bandwidth = s1.bandwidth = 200L * Streamer.PACKET;
+    long start = System.nanoTime();
+    s0.start();
+    s1.start();
+    try {
+      // Keep changing weights, as unchanged blocks are not sent
+      while( System.nanoTime() - start < 1e9 ) {
+        for( int i = 0; i < w0.length; i++ )
+          w0[i]++;
+        Thread.sleep(1);
+      }
+    } finally {
+      s0.close();
+      s1.close();
+    }
+    double seconds = (System.nanoTime() - start) * 1e-9;
+    Assert.assertTrue(s0._sent > 0);
+    Assert.assertTrue("" + s0._sent, s0._sent <= Streamer.BURST + 200 * seconds + 1);
+    Assert.assertTrue(w1[2 * Streamer.BLOCK] > 2 * Streamer.BLOCK);
+  }
+
+  /**
+   * Once replicas are in sync and weights do not change, streamers must wait instead of spinning.
+   */
+  @Test
+  public void idle() throws Exception {
+    SocketAddress[] nodes = new SocketAddress[] { new InetSocketAddress("127.0.0.1", 42363),
+        new InetSocketAddress("127.0.0.1", 42364) };
+    float[] w0 = new float[8 * Streamer.BLOCK];
+    float[] w1 = new float[8 * Streamer.BLOCK];
+    for( int i = 0; i < w0.length; i++ )
+      w0[i] = i;
+    Streamer s0 = new Streamer(w0, nodes, 0);
+    Streamer s1 = new Streamer(w1, nodes, 1);
+    s0.start();
+    s1.start();
+    try {
+      long end = System.currentTimeMillis() + 10000;
+      while( w1[6 * Streamer.BLOCK] == 0 ) {
+        Assert.assertTrue(System.currentTimeMillis() < end);
+        Thread.sleep(10);
+      }
+      Thread.sleep(100);
+      ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      long cycles = s0._cycles, sent = s0._sent, cpu = cpu(threads), start = System.nanoTime();
+      Thread.sleep(1000);
+      double seconds = (System.nanoTime() - start) * 1e-9;
+      // Waits of IDLE_MS, and one resend of each of the 4 blocks of node 0 per RESEND_MS
+      cycles = s0._cycles - cycles;
+      sent = s0._sent - sent;
+      Assert.assertTrue("" + cycles, cycles < 2 * seconds * 1000 / Streamer.IDLE_MS);
+      Assert.assertTrue("" + sent, sent <= 4 * (seconds * 1000 / Streamer.RESEND_MS + 1));
+      if( threads.isThreadCpuTimeSupported() )
+        Assert.assertTrue("" + (cpu(threads) - cpu), cpu(threads) - cpu < seconds * 1e9 * .1);
+    } finally {
+      s0.close();
+      s1.close();
+    }
+  }
+
+  private static long cpu(ThreadMXBean threads) {
+    long total = 0;
+    for( Thread thread : Thread.getAllStackTraces().keySet() )
+      if( thread.getName().equals("Streamer") )
+        total += threads.getThreadCpuTime(thread.getId());
+    return total;
+  }
+
+  /**
+   * Sends which find the socket buffer full must wait and retry, and not lose deltas.
+   */
+  @Test
+  public void retry() throws Exception {
+    SocketAddress[] nodes = new SocketAddress[] { new InetSocketAddress("127.0.0.1", 42365),
+        new InetSocketAddress("127.0.0.1", 42366) };
+    float[] w0 = new float[2 * Streamer.BLOCK], w1 = new float[2 * Streamer.BLOCK];
+    Streamer s0 = new Streamer(w0, nodes, 0);
+    Streamer s1 = new Streamer(w1, nodes, 1) {
+      boolean _full;
+
+      @Override
+      int write(ByteBuffer buffer, SocketAddress node) throws IOException {
+        // Loopback never fills the buffer, so every other attempt acts as if it was full
+        _full = !_full;
+        return _full ? 0 : super.write(buffer, node);
+      }
+    };
+    w1[5] = 1;
+    s0.start();
+    s1.start();
+    try {
+      long end = System.currentTimeMillis() + 10000;
+      while( w0[5] != 1 ) {
+        Assert.assertTrue(System.currentTimeMillis() < end);
+        Thread.sleep(10);
+      }
+    } finally {
+      s0.close();
+      s1.close();
+    }
+    Assert.assertTrue(s1._blocked > 0);
+    Assert.assertEquals(1, w1[5], 0);
+  }
+}
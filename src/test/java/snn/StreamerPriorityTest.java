@@ -0,0 +1,84 @@
+package snn;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StreamerPriorityTest {
+  @Test
+  public void priorities() {
+    Priorities p = new Priorities(4);
+    p.set(0, 1e-6);
+    p.set(1, 1);
+    p.set(2, 1e-3);
+    p.set(3, 1);
+    p.set(3, 0);
+    Assert.assertEquals(1, p.poll());
+    Assert.assertEquals(2, p.poll());
+    p.set(1, 1e-6);
+    // Same bucket, insertion order
+    Assert.assertEquals(0, p.poll());
+    Assert.assertEquals(1, p.poll());
+    Assert.assertEquals(-1, p.poll());
+  }
+
+  @Test
+  public void stream() throws Exception {
+    SocketAddress[] nodes = new SocketAddress[] { new InetSocketAddress("127.0.0.1", 42351),
+        new InetSocketAddress("127.0.0.1", 42352) };
+    float[] w0 = new float[8 * Streamer.BLOCK];
+    final float[] w1 = new float[8 * Streamer.BLOCK];
+    for( int i = 0; i < w0.length; i++ )
+      w0[i] = i;
+    Streamer s0 = new Streamer(w0, nodes, 0);
+    Streamer s1 = new Streamer(w1, nodes, 1) {
+      @Override
+      protected void weightsReady() {
+        // Node 1 got node 0's blocks, then changes one
+        w1[5] += 1;
+      }
+    };
+    s0.prioritized = s1.prioritized = true;
+    s0.start();
+    s1.start();
+    try {
+      long end = System.currentTimeMillis() + 10000;
+      while( w0[5] != 6 && System.currentTimeMillis() < end )
+        Thread.sleep(10);
+    } finally {
+      s0.close();
+      s1.close();
+    }
+    Assert.assertEquals(2 * Streamer.BLOCK, w1[2 * Streamer.BLOCK], 0);
+    Assert.assertEquals(6, w0[5], 0);
+  }
+
+  /**
+   * Deltas made before the master is up must not be lost.
+   */
+  @Test
+  public void lateMaster() throws Exception {
+    SocketAddress[] nodes = new SocketAddress[] { new InetSocketAddress("127.0.0.1", 42353),
+        new InetSocketAddress("127.0.0.1", 42354) };
+    float[] w0 = new float[2 * Streamer.BLOCK], w1 = new float[2 * Streamer.BLOCK];
+    Streamer s0 = new Streamer(w0, nodes, 0), s1 = new Streamer(w1, nodes, 1);
+    s0.prioritized = s1.prioritized = true;
+    w1[5] = 1;
+    s1.start();
+    try {
+      long end = System.currentTimeMillis() + 10000;
+      while( s1._cycles < 10 )
+        Thread.sleep(10);
+      s0.start();
+      while( w0[5] != 1 && System.currentTimeMillis() < end )
+        Thread.sleep(10);
+    } finally {
+      s0.close();
+      s1.close();
+    }
+    Assert.assertEquals(1, w0[5], 0);
+    Assert.assertEquals(1, w1[5], 0);
+  }
+}
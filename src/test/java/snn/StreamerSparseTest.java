@@ -0,0 +1,35 @@
+package snn;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StreamerSparseTest {
+  @Test
+  public void stream() throws Exception {
+    SocketAddress[] nodes = new SocketAddress[] { new InetSocketAddress("127.0.0.1", 42341),
+        new InetSocketAddress("127.0.0.1", 42342) };
+    float[] w0 = new float[4 * Streamer.BLOCK], w1 = new float[4 * Streamer.BLOCK];
+    Streamer s0 = new Streamer(w0, nodes, 0), s1 = new Streamer(w1, nodes, 1);
+    s0.density = s1.density = .01f;
+    // A few weights of blocks 0 and 2, both mastered by node 0, can go in one packet
+    int[] moving = new int[] { 5, 100, 2 * Streamer.BLOCK + 7 };
+    for( int i : moving )
+      w1[i] = 1;
+    s0.start();
+    s1.start();
+    try {
+      long end = System.currentTimeMillis() + 10000;
+      while( w0[moving[0]] + w0[moving[1]] + w0[moving[2]] != 3 && System.currentTimeMillis() < end )
+        Thread.sleep(10);
+    } finally {
+      s0.close();
+      s1.close();
+    }
+    for( int i : moving )
+      Assert.assertEquals(1, w0[i], 0);
+    Assert.assertEquals(0, w0[6], 0);
+  }
+}
@@ -0,0 +1,127 @@
+package snn;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TasksTest {
+  @Test
+  public void failure() {
+    Tasks.Scope scope = new Tasks.Scope("Test");
+    scope.compute("Failing", new Runnable() {
+      @Override
+      public void run() {
+        throw new IllegalStateException("failed");
+      }
+    });
+    scope.io(new Runnable() {
+      @Override
+      public void run() {
+      }
+    });
+    try {
+      scope.join();
+      Assert.fail();
+    } catch( IllegalStateException e ) {
+      Assert.assertEquals("failed", e.getMessage());
+    }
+  }
+
+  @Test
+  public void shutdown() throws Exception {
+    final CountDownLatch started = new CountDownLatch(2);
+    Tasks.Scope scope = new Tasks.Scope("Test");
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        while( !Thread.currentThread().isInterrupted() )
+          Thread.yield();
+      }
+    };
+    scope.compute("Looping", task);
+    scope.io(task);
+    started.await();
+    Tasks.shutdown();
+    scope.join();
+  }
+
+  /**
+   * Join must wait for cancelled tasks to return, e.g. for a streamer to close its channels.
+   */
+  @Test
+  public void cleanup() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final AtomicBoolean closed = new AtomicBoolean();
+    Tasks.Scope scope = new Tasks.Scope("Test");
+    scope.compute("Closing", new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        try {
+          Thread.sleep(Long.MAX_VALUE);
+        } catch( InterruptedException e ) {
+          // Cancelled
+        }
+        long end = System.nanoTime() + 200000000L;
+        while( System.nanoTime() < end )
+          Thread.yield();
+        closed.set(true);
+      }
+    });
+    started.await();
+    scope.cancel();
+    scope.join();
+    Assert.assertTrue(closed.get());
+  }
+
+  /**
+   * Tasks that ended without failure must be forgotten without join.
+   */
+  @Test
+  public void prune() throws Exception {
+    final CountDownLatch done = new CountDownLatch(100);
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    };
+    for( int i = 0; i < 100; i++ )
+      Tasks.background().io(task);
+    done.await();
+    long end = System.currentTimeMillis() + 10000;
+    for( ;; ) {
+      synchronized( Tasks.background() ) {
+        if( Tasks.background()._tasks.isEmpty() )
+          break;
+      }
+      Assert.assertTrue(System.currentTimeMillis() < end);
+      Thread.sleep(1);
+    }
+  }
+
+  /**
+   * Compute threads, e.g. output forwarders, must keep the VM alive even if started from a daemon.
+   */
+  @Test
+  public void nonDaemon() {
+    final AtomicBoolean daemon = new AtomicBoolean(true);
+    final Tasks.Scope scope = new Tasks.Scope("Test");
+    scope.io(new Runnable() {
+      @Override
+      public void run() {
+        scope.compute("Forwarder", new Runnable() {
+          @Override
+          public void run() {
+            daemon.set(Thread.currentThread().isDaemon());
+          }
+        });
+      }
+    });
+    scope.join();
+    Assert.assertFalse(daemon.get());
+  }
+}